@@ -0,0 +1,71 @@
+/*
+ * Copyright 2013 StoryScape Project. All rights reserved.
+ *  
+ * 
+ */
+package fslt.lib.actions;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One event on the ActionEventBus. Events are primitive records taken from
+ * the bus's pool and handed back once every subscriber has seen them, so a
+ * subscriber must copy whatever it needs before onEvent() returns and must not
+ * keep the event.
+ * <p>
+ * Fields by type:
+ * <ul>
+ * <li>TYPE_SHAKE: value is the shake strength</li>
+ * <li>TYPE_SOUND: value is the level, intValue the frequency band or -1</li>
+ * <li>TYPE_FACE_DETECTED: intValue is the number of faces</li>
+ * <li>TYPE_SPEECH: payload is the recognizer's results Bundle</li>
+ * <li>TYPE_TILT: intValue is a SensorFusionDetection TILT_ direction, value
+ * the pitch or roll in that direction in degrees</li>
+ * <li>TYPE_HEADING: value is the azimuth in degrees</li>
+ * </ul>
+ * Types up to MAX_TYPE that are not listed here are free for the application.
+ */
+public class ActionEvent {
+	public static final int TYPE_SHAKE = 0;
+	public static final int TYPE_SOUND = 1;
+	public static final int TYPE_FACE_DETECTED = 2;
+	public static final int TYPE_SPEECH = 3;
+	public static final int TYPE_TILT = 4;
+	public static final int TYPE_HEADING = 5;
+	public static final int MAX_TYPE = 31;
+
+	int type;
+	long timeMillis;
+	double value;
+	int intValue;
+	Object payload;
+	// deliveries still to run before the event goes back to the pool
+	final AtomicInteger pending = new AtomicInteger();
+
+	ActionEvent() {
+	}
+
+	public int getType() {
+		return type;
+	}
+
+	public long getTimeMillis() {
+		return timeMillis;
+	}
+
+	public double getValue() {
+		return value;
+	}
+
+	public int getIntValue() {
+		return intValue;
+	}
+
+	public Object getPayload() {
+		return payload;
+	}
+
+	void clear() {
+		payload = null;
+	}
+}
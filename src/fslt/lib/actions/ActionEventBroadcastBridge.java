@@ -0,0 +1,69 @@
+/*
+ * Copyright 2013 StoryScape Project. All rights reserved.
+ *  
+ * 
+ */
+package fslt.lib.actions;
+
+import java.util.ArrayList;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.speech.SpeechRecognizer;
+import android.support.v4.content.LocalBroadcastManager;
+
+/**
+ * Subscriber that forwards bus events as the local broadcasts the detectors
+ * used to send, with the same extras, for receivers that have not moved to
+ * the bus. Subscribe one bridge per type and action name.
+ *
+ * <pre>
+ * {@code
+ * bus.subscribe(ActionEvent.TYPE_SHAKE,
+ * 		new ActionEventBroadcastBridge(mCtx, ShakeDetection.getActionName()), null);
+ * }
+ * </pre>
+ */
+public class ActionEventBroadcastBridge implements ActionEventSubscriber {
+	private final LocalBroadcastManager mBroadcastManager;
+	private final String mActionName;
+
+	/**
+	 * @param actionName
+	 *            the intent filter string to broadcast with
+	 */
+	public ActionEventBroadcastBridge(Context context, String actionName) {
+		mBroadcastManager = LocalBroadcastManager.getInstance(context);
+		mActionName = actionName;
+	}
+
+	@Override
+	public void onEvent(ActionEvent event) {
+		Intent intent = new Intent();
+		intent.setAction(mActionName);
+		switch (event.getType()) {
+		case ActionEvent.TYPE_SHAKE:
+			intent.putExtra(ShakeDetection.SHAKEN, true);
+			intent.putExtra(ShakeDetection.SHAKE_STRENGTH, (float) event.getValue());
+			break;
+		case ActionEvent.TYPE_SOUND:
+			intent.putExtra("SOUND_DETECTED", true);
+			intent.putExtra("DECIBLES", event.getValue());
+			if (event.getIntValue() >= 0) {
+				intent.putExtra("BAND", event.getIntValue());
+			}
+			break;
+		case ActionEvent.TYPE_SPEECH:
+			Bundle results = (Bundle) event.getPayload();
+			ArrayList<String> strlist = results.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION);
+			intent.putExtra(SpeechRecognition.RESULTS, strlist);
+			intent.putExtra(SpeechRecognition.CONFIDENCE, results.getFloatArray(SpeechRecognizer.CONFIDENCE_SCORES));
+			break;
+		default:
+			// TYPE_FACE_DETECTED and application types carry no extras
+			break;
+		}
+		mBroadcastManager.sendBroadcast(intent);
+	}
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2013 StoryScape Project. All rights reserved.
+ *  
+ * 
+ */
+package fslt.lib.actions;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Typed event bus for the action detectors, an alternative to one Intent and
+ * one LocalBroadcastManager round trip per event. Subscribers register for an
+ * event type and an Executor; publishing takes a primitive ActionEvent from a
+ * recycled pool, drops it into each subscriber's bounded mailbox and
+ * schedules the mailbox on its executor, so no Bundle, Intent or action
+ * string matching is involved and nothing is allocated per event.
+ * <p>
+ * Subscribing, publishing and delivery are lock free: subscriber lists are
+ * copy on write arrays swapped with compareAndSet, mailboxes are multi
+ * producer single consumer rings. When a mailbox is full the event is
+ * dropped for that subscriber and counted.
+ * <p>
+ * The LocalBroadcastManager behaviour is available as an
+ * ActionEventBroadcastBridge subscriber.
+ *
+ * <pre>
+ * {@code
+ * ActionEventBus bus = ActionEventBus.getDefault();
+ * bus.subscribe(ActionEvent.TYPE_SHAKE, mySubscriber, ActionEventBus.MAIN_THREAD);
+ * shakeDetection.setEventBus(bus);
+ * }
+ * </pre>
+ */
+public class ActionEventBus {
+	private static final String TAG = ActionEventBus.class.getSimpleName();
+
+	public static final int DEFAULT_POOL_SIZE = 64;
+	public static final int DEFAULT_MAILBOX_SIZE = 256;
+
+	/** Delivers on the main application thread */
+	public static final Executor MAIN_THREAD = new Executor() {
+		private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+		@Override
+		public void execute(Runnable command) {
+			mHandler.post(command);
+		}
+	};
+
+	private static final Subscription[] NO_SUBSCRIPTIONS = new Subscription[0];
+	private static ActionEventBus sDefault;
+
+	private final AtomicReferenceArray<Subscription[]> mSubscriptions;
+	private final AtomicReferenceArray<ActionEvent> mPool;
+	private final AtomicInteger mPoolHint = new AtomicInteger();
+	private final int mMailboxSize;
+
+	private final AtomicLong mPublishedCount = new AtomicLong();
+	private final AtomicLong mDeliveredCount = new AtomicLong();
+	private final AtomicLong mDroppedCount = new AtomicLong();
+	private final AtomicLong mPoolMissCount = new AtomicLong();
+
+	/**
+	 * @return the bus shared by the whole application
+	 */
+	public static synchronized ActionEventBus getDefault() {
+		if (sDefault == null) {
+			sDefault = new ActionEventBus(DEFAULT_POOL_SIZE, DEFAULT_MAILBOX_SIZE);
+		}
+		return sDefault;
+	}
+
+	/**
+	 * @param poolSize
+	 *            events kept for reuse, more are allocated if they are all in
+	 *            flight
+	 * @param mailboxSize
+	 *            events a subscriber may fall behind by, rounded up to a power
+	 *            of 2
+	 */
+	public ActionEventBus(int poolSize, int mailboxSize) {
+		mSubscriptions = new AtomicReferenceArray<Subscription[]>(ActionEvent.MAX_TYPE + 1);
+		for (int i = 0; i <= ActionEvent.MAX_TYPE; i++) {
+			mSubscriptions.set(i, NO_SUBSCRIPTIONS);
+		}
+		mPool = new AtomicReferenceArray<ActionEvent>(poolSize);
+		for (int i = 0; i < poolSize; i++) {
+			mPool.set(i, new ActionEvent());
+		}
+		mMailboxSize = Integer.highestOneBit(Math.max(2, mailboxSize) * 2 - 1);
+	}
+
+	/**
+	 * @param executor
+	 *            where subscriber is called, null to call it on the publishing
+	 *            thread
+	 */
+	public void subscribe(int type, ActionEventSubscriber subscriber, Executor executor) {
+		if (subscriber == null) {
+			throw new IllegalArgumentException("subscriber must not be null");
+		}
+		Subscription subscription = new Subscription(subscriber, executor);
+		while (true) {
+			Subscription[] current = mSubscriptions.get(type);
+			Subscription[] updated = new Subscription[current.length + 1];
+			System.arraycopy(current, 0, updated, 0, current.length);
+			updated[current.length] = subscription;
+			if (mSubscriptions.compareAndSet(type, current, updated)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Stop delivering type to subscriber, events already in its mailbox are
+	 * discarded.
+	 */
+	public void unsubscribe(int type, ActionEventSubscriber subscriber) {
+		while (true) {
+			Subscription[] current = mSubscriptions.get(type);
+			int index = -1;
+			for (int i = 0; i < current.length; i++) {
+				if (current[i].mSubscriber == subscriber) {
+					index = i;
+					break;
+				}
+			}
+			if (index == -1) {
+				return;
+			}
+			Subscription[] updated = current.length == 1 ? NO_SUBSCRIPTIONS : new Subscription[current.length - 1];
+			System.arraycopy(current, 0, updated, 0, index);
+			System.arraycopy(current, index + 1, updated, index, updated.length - index);
+			if (mSubscriptions.compareAndSet(type, current, updated)) {
+				current[index].mActive = false;
+				return;
+			}
+		}
+	}
+
+	public boolean hasSubscribers(int type) {
+		return mSubscriptions.get(type).length > 0;
+	}
+
+	/**
+	 * Publish an event, see ActionEvent for the meaning of the fields per
+	 * type.
+	 */
+	public void publish(int type, long timeMillis, double value, int intValue, Object payload) {
+		Subscription[] subscriptions = mSubscriptions.get(type);
+		if (subscriptions.length == 0) {
+			return;
+		}
+		mPublishedCount.incrementAndGet();
+		ActionEvent event = obtain();
+		event.type = type;
+		event.timeMillis = timeMillis;
+		event.value = value;
+		event.intValue = intValue;
+		event.payload = payload;
+		event.pending.set(subscriptions.length);
+		for (Subscription subscription : subscriptions) {
+			subscription.post(event);
+		}
+	}
+
+	/** @return events published to at least one subscriber */
+	public long getPublishedCount() {
+		return mPublishedCount.get();
+	}
+
+	/** @return subscriber calls made */
+	public long getDeliveredCount() {
+		return mDeliveredCount.get();
+	}
+
+	/** @return deliveries lost to full mailboxes */
+	public long getDroppedCount() {
+		return mDroppedCount.get();
+	}
+
+	/** @return events allocated because the pool was empty */
+	public long getPoolMissCount() {
+		return mPoolMissCount.get();
+	}
+
+	private ActionEvent obtain() {
+		int size = mPool.length();
+		int start = mPoolHint.get();
+		for (int i = 0; i < size; i++) {
+			int index = (start + i) % size;
+			ActionEvent event = mPool.getAndSet(index, null);
+			if (event != null) {
+				mPoolHint.set(index);
+				return event;
+			}
+		}
+		mPoolMissCount.incrementAndGet();
+		return new ActionEvent();
+	}
+
+	private void release(ActionEvent event) {
+		if (event.pending.decrementAndGet() != 0) {
+			return;
+		}
+		event.clear();
+		int size = mPool.length();
+		int start = mPoolHint.get();
+		for (int i = 0; i < size; i++) {
+			int index = (start + i) % size;
+			if (mPool.compareAndSet(index, null, event)) {
+				mPoolHint.set(index);
+				return;
+			}
+		}
+		// pool is full, leave the extra event to the garbage collector
+	}
+
+	/**
+	 * One subscriber and its mailbox. Any thread may post, the executor
+	 * drains, never more than one drain runs at a time.
+	 */
+	private class Subscription implements Runnable {
+		final ActionEventSubscriber mSubscriber;
+		final Executor mExecutor;
+		volatile boolean mActive = true;
+
+		private final AtomicReferenceArray<ActionEvent> mSlots;
+		private final int mMask;
+		private final AtomicLong mTail = new AtomicLong();
+		private volatile long mHead;
+		private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+		Subscription(ActionEventSubscriber subscriber, Executor executor) {
+			mSubscriber = subscriber;
+			mExecutor = executor;
+			mSlots = executor == null ? null : new AtomicReferenceArray<ActionEvent>(mMailboxSize);
+			mMask = mMailboxSize - 1;
+		}
+
+		void post(ActionEvent event) {
+			if (mExecutor == null) {
+				deliver(event);
+				return;
+			}
+			if (!offer(event)) {
+				mDroppedCount.incrementAndGet();
+				release(event);
+				return;
+			}
+			if (mScheduled.compareAndSet(false, true)) {
+				mExecutor.execute(this);
+			}
+		}
+
+		private boolean offer(ActionEvent event) {
+			while (true) {
+				long tail = mTail.get();
+				if (tail - mHead >= mSlots.length()) {
+					return false;
+				}
+				if (mTail.compareAndSet(tail, tail + 1)) {
+					mSlots.set((int) (tail & mMask), event);
+					return true;
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			do {
+				while (true) {
+					long head = mHead;
+					if (head >= mTail.get()) {
+						break;
+					}
+					int index = (int) (head & mMask);
+					ActionEvent event = mSlots.get(index);
+					if (event == null) {
+						// slot claimed, the producer is about to fill it
+						Thread.yield();
+						continue;
+					}
+					mSlots.set(index, null);
+					mHead = head + 1;
+					deliver(event);
+				}
+				mScheduled.set(false);
+			} while (mHead < mTail.get() && mScheduled.compareAndSet(false, true));
+		}
+
+		private void deliver(ActionEvent event) {
+			try {
+				if (mActive) {
+					mSubscriber.onEvent(event);
+					mDeliveredCount.incrementAndGet();
+				}
+			} catch (RuntimeException e) {
+				Log.e(TAG, "subscriber failed on event type " + event.type, e);
+			} finally {
+				release(event);
+			}
+		}
+	}
+}
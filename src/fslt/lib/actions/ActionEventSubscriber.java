@@ -0,0 +1,18 @@
+/*
+ * Copyright 2013 StoryScape Project. All rights reserved.
+ *  
+ * 
+ */
+package fslt.lib.actions;
+
+/**
+ * Receives events of the types it subscribed to on an ActionEventBus.
+ */
+public interface ActionEventSubscriber {
+
+	/**
+	 * Called on the executor given to subscribe(). event is recycled when this
+	 * returns, copy anything needed later.
+	 */
+	void onEvent(ActionEvent event);
+}
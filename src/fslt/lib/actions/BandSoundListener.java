@@ -0,0 +1,24 @@
+/*
+ * Copyright 2013 StoryScape Project. All rights reserved.
+ *  
+ * 
+ */
+package fslt.lib.actions;
+
+/**
+ * SoundLevelListener that also wants to know which frequency band of a
+ * SpectralSoundStage triggered. When a spectral stage is set,
+ * onBandSoundDetected() is called instead of onSoundDetected().
+ */
+public interface BandSoundListener extends SoundLevelListener {
+
+	/**
+	 * @param band
+	 *            index returned by SpectralSoundStage.addBand()
+	 * @param level
+	 *            level of the band in dBFS
+	 * @param timeMillis
+	 *            time the level was measured
+	 */
+	void onBandSoundDetected(int band, double level, long timeMillis);
+}
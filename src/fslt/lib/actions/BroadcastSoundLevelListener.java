@@ -0,0 +1,56 @@
+/*
+ * Copyright 2013 StoryScape Project. All rights reserved.
+ *  
+ * 
+ */
+package fslt.lib.actions;
+
+import android.content.Context;
+import android.content.Intent;
+import android.support.v4.content.LocalBroadcastManager;
+
+/**
+ * Adapter that turns sound events into local broadcasts, with the
+ * SOUND_DETECTED and DECIBLES extras receivers of SoundLevelDetection have
+ * always used. Both detectors register one by default. Events from a
+ * SpectralSoundStage also carry the band index in the BAND extra.
+ */
+public class BroadcastSoundLevelListener implements BandSoundListener {
+	private final LocalBroadcastManager mBroadcastManager;
+	private final String mActionName;
+
+	/**
+	 * @param actionName
+	 *            the intent filter string to broadcast with
+	 */
+	public BroadcastSoundLevelListener(Context context, String actionName) {
+		mBroadcastManager = LocalBroadcastManager.getInstance(context);
+		mActionName = actionName;
+	}
+
+	public String getActionName() {
+		return mActionName;
+	}
+
+	@Override
+	public void onSoundDetected(double level, long timeMillis) {
+		mBroadcastManager.sendBroadcast(createIntent(level));
+	}
+
+	@Override
+	public void onBandSoundDetected(int band, double level, long timeMillis) {
+		Intent intent = createIntent(level);
+		intent.putExtra("BAND", band);
+		mBroadcastManager.sendBroadcast(intent);
+	}
+
+	private Intent createIntent(double level) {
+		Intent intent = new Intent();
+		intent.putExtra("SOUND_DETECTED", true);
+		intent.setAction(mActionName);
+		intent.putExtra("DECIBLES", level);
+		// instantiator must setup a BroadcastReceiver to listen for
+		// message (mActionName)
+		return intent;
+	}
+}
@@ -10,11 +10,10 @@ import java.io.IOException;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.graphics.Bitmap;
 import android.hardware.Camera;
-import android.media.FaceDetector;
 import android.media.FaceDetector.Face;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 import android.view.SurfaceHolder;
@@ -33,6 +32,17 @@ import android.widget.Toast;
  * <p>
  * Note that by default the camera is in landscape view.
  * <p>
+ * Preview frames are delivered into a ring of preallocated buffers and
+ * processed by a single detector thread, frames that arrive while it is busy
+ * are dropped rather than queued.
+ * <p>
+ * {@link #setTrackingMode} follows up to N faces and reports them entering,
+ * moving and leaving, with their midpoint and eye distance, to a
+ * FaceTracker.Listener. 
+ * <p>
+ * {@link #enableFrameRateGovernor} lets a FrameRateGovernor trade preview
+ * frame rate and detection interval against a target CPU duty cycle. 
+ * <p>
  * Example usage from an activity: 
  * <pre>
  * {@code
@@ -68,21 +78,24 @@ public class CameraFaceDetectionView extends SurfaceView implements SurfaceHolde
 	private int mSurfaceWidth = 320; 
 	private int mSurfaceHeight = 240; 
 	private SurfaceHolder mSurfaceHolder;
-	private FaceDetectionAsyncTask mFDAsyncTask;
 	private boolean mFrontCam = false;
 	private boolean mRearCam = false; 
 
 	private Camera mCamera;
 	public static final int IMAGE_WIDTH = 320;
 	public static final int IMAGE_HEIGHT = 240;
-	private byte[] mCopiedData = new byte[IMAGE_WIDTH*IMAGE_HEIGHT];
-	private int[] mDecodedData = new int[IMAGE_WIDTH*IMAGE_HEIGHT];
-
-	private FaceDetector mFaceDetector = new FaceDetector(IMAGE_WIDTH, IMAGE_HEIGHT, 1);
-	private Bitmap mBitmap = Bitmap.createBitmap(IMAGE_WIDTH, IMAGE_HEIGHT, Bitmap.Config.RGB_565);
-	private Face[] mFaces = new Face[1];
-
-	private boolean mBusyFindFaces = false; 
+	private final Handler mHandler = new Handler();
+	private FaceDetectionPipeline mPipeline;
+	private int mMaxFaces = 1; 
+	private int mDownscale = 1; 
+	private int mDetectionInterval = 1; 
+	private FaceTracker.Listener mTrackingListener; 
+	private float mGovernorTarget = 0; 
+	private int mGovernorMaxInterval; 
+	private volatile FrameRateGovernor mGovernor; 
+	private int[] mAppliedFpsRange; 
+	private volatile ActionEventBus mEventBus; 
+	private volatile boolean mBroadcastEnabled = true; 
 	// set by caller
 	public boolean runFaceDetector = false;
 	private int OPEN_CAMERA_FACING = Camera.CameraInfo.CAMERA_FACING_FRONT; 
@@ -175,28 +188,89 @@ public class CameraFaceDetectionView extends SurfaceView implements SurfaceHolde
 	public String getActionName(){
 		return mActionName; 
 	}
+	/**
+	 * Track faces instead of only reporting that one was found. Takes effect
+	 * the next time the preview surface changes, so call before the view is
+	 * attached. Listener methods are called on the detector thread.  
+	 * 
+	 * @param maxFaces
+	 * 				most faces tracked at once
+	 * @param downscale
+	 * 				detect on a frame this many times smaller in each 
+	 * 				direction, 2 is a good choice for older tablets
+	 * @param detectionInterval
+	 * 				run the full detector every detectionInterval frames and
+	 * 				cheap template tracking on the frames in between
+	 * @param listener
+	 * 				receives enter, move and leave events, null to stop tracking
+	 */
+	public void setTrackingMode(int maxFaces, int downscale, int detectionInterval, FaceTracker.Listener listener){
+		mMaxFaces = listener == null ? 1 : maxFaces; 
+		mDownscale = listener == null ? 1 : downscale; 
+		mDetectionInterval = detectionInterval; 
+		mTrackingListener = listener; 
+	}
+	/**
+	 * Adjust preview frame rate and detection interval to keep the detector 
+	 * thread busy about targetDutyCycle of the time. Takes effect the next 
+	 * time the preview surface changes. 
+	 * 
+	 * @param targetDutyCycle
+	 * 				e.g. FrameRateGovernor.DEFAULT_TARGET_DUTY_CYCLE, 0 to 
+	 * 				disable the governor
+	 * @param maxDetectionInterval
+	 * 				largest detection interval the governor may use
+	 */
+	public void enableFrameRateGovernor(float targetDutyCycle, int maxDetectionInterval){
+		mGovernorTarget = targetDutyCycle; 
+		mGovernorMaxInterval = maxDetectionInterval; 
+	}
+	/*
+	 * Also publish detections on bus as ActionEvent.TYPE_FACE_DETECTED, with 
+	 * the number of faces, from the detector thread. null to stop. 
+	 */
+	public void setEventBus(ActionEventBus bus){
+		mEventBus = bus; 
+	}
+	/*
+	 * @param enabled 
+	 * 				false to stop the toast and local broadcast on a found face, 
+	 * 				e.g. when only the event bus is used
+	 */
+	public void setBroadcastEnabled(boolean enabled){
+		mBroadcastEnabled = enabled; 
+	}
+	/*
+	 * @return the running governor, for its rate and duty cycle, or null
+	 */
+	public FrameRateGovernor getFrameRateGovernor(){
+		return mGovernor; 
+	}
+	/*
+	 * @return number of preview frames dropped because the detector was busy
+	 */
+	public long getDroppedFrameCount(){
+		return mPipeline == null ? 0 : mPipeline.getDroppedCount(); 
+	}
+	/*
+	 * @return number of preview frames skipped between detection intervals
+	 */
+	public long getSkippedFrameCount(){
+		return mPipeline == null ? 0 : mPipeline.getSkippedCount(); 
+	}
 	/*
 	 * (non-Javadoc)
 	 * @see android.hardware.Camera.PreviewCallback#onPreviewFrame(byte[], android.hardware.Camera)
 	 * 
-	 * If {@link FaceDetectionAsyncTask} not running start new task and pass current 
-	 * preview data for face detection. 
+	 * Hand the preview buffer to the detector thread, if it is idle, otherwise 
+	 * give it straight back to the camera. 
 	 */
 	@Override
 	public void onPreviewFrame(byte[] data, Camera camera) {
-		if( !mBusyFindFaces && runFaceDetector ) {
-			mBusyFindFaces = true; 
-			System.arraycopy(data, 0, mCopiedData, 0, IMAGE_WIDTH*IMAGE_HEIGHT);
-			mFDAsyncTask = new FaceDetectionAsyncTask(); 
-			AsyncTask.Status status = mFDAsyncTask.getStatus(); 
-			if( (status == AsyncTask.Status.RUNNING) || (status == AsyncTask.Status.FINISHED) )
-				Log.d(TAG, "task still running"); 
-			try{
-				mFDAsyncTask.execute(mCopiedData);
-			}catch( IllegalStateException e){
-				Log.d(TAG, "IllegalStateException "); 
-				e.printStackTrace();
-			}
+		if( runFaceDetector && mPipeline != null ) {
+			mPipeline.offerFrame(data, camera); 
+		}else{
+			camera.addCallbackBuffer(data); 
 		}
 	}
 	/*
@@ -214,13 +288,33 @@ public class CameraFaceDetectionView extends SurfaceView implements SurfaceHolde
 		layoutParams.height = mSurfaceHeight;
 		this.setLayoutParams(layoutParams);
 
+		// a surface change can come while previewing, the old pipeline's buffers are 
+		// cleared with the callback so the new pipeline's ring replaces them 
+		mCamera.stopPreview();
+		mCamera.setPreviewCallbackWithBuffer(null);
+		if( mPipeline != null ){
+			mPipeline.stop(); 
+			mPipeline = null; 
+		}
+
 		Camera.Parameters parameters = mCamera.getParameters();
 
 		parameters.setPreviewSize(IMAGE_WIDTH, IMAGE_HEIGHT);
-		parameters.setPreviewFpsRange(15000, 15000);
-		mCopiedData = new byte[IMAGE_WIDTH*IMAGE_HEIGHT];
-		mDecodedData = new int[IMAGE_WIDTH*IMAGE_HEIGHT];
+		if( mGovernorTarget > 0 ){
+			mGovernor = new FrameRateGovernor(parameters.getSupportedPreviewFpsRange(), 15000, 
+					mGovernorTarget, mGovernorMaxInterval);
+			mAppliedFpsRange = mGovernor.getFpsRange(); 
+			parameters.setPreviewFpsRange(mAppliedFpsRange[0], mAppliedFpsRange[1]);
+		}else{
+			mGovernor = null; 
+			parameters.setPreviewFpsRange(15000, 15000);
+		}
 		mCamera.setParameters(parameters);
+		mCamera.setPreviewCallbackWithBuffer(this);
+		mPipeline = new FaceDetectionPipeline(IMAGE_WIDTH, IMAGE_HEIGHT, mMaxFaces, 
+				FaceDetectionPipeline.DEFAULT_BUFFER_COUNT, mDownscale, mPipelineCallback, mTrackingListener);
+		mPipeline.setDetectionInterval(mGovernor != null ? mGovernor.getDetectionInterval() : mDetectionInterval);
+		mPipeline.start(mCamera);
 		mCamera.startPreview();
 	}
 	/**
@@ -272,7 +366,7 @@ public class CameraFaceDetectionView extends SurfaceView implements SurfaceHolde
 		mCamera = openCamera(OPEN_CAMERA_FACING); //Camera.open();
 		try {
 			mCamera.setPreviewDisplay(holder);
-			mCamera.setPreviewCallback(this);
+			mCamera.setPreviewCallbackWithBuffer(this);
 		} catch (IOException exception) {
 			mCamera.setPreviewCallback(null);  // Workaround for Android bug
 			mCamera.release();
@@ -292,7 +386,11 @@ public class CameraFaceDetectionView extends SurfaceView implements SurfaceHolde
 		// Because the CameraDevice object is not a shared resource, it's very
 		// important to release it when the activity is paused.
 		//Log.v("APG", "surfaceDestroyed");
-		mCamera.setPreviewCallback(null);  // Workaround for Android bug
+		if( mPipeline != null ){
+			mPipeline.stop(); 
+			mPipeline = null; 
+		}
+		mCamera.setPreviewCallbackWithBuffer(null);  // Workaround for Android bug
 		mCamera.stopPreview();
 		mCamera.release();
 		mCamera = null;
@@ -329,60 +427,60 @@ public class CameraFaceDetectionView extends SurfaceView implements SurfaceHolde
 		return cam;
 	}
 	/*
-	 *  FaceDetectionAsyncTask is a AsyncTask that takes a preview image
-	 *  and runs a face detector on it to detect if a face is present in the 
-	 *  image. 
-	 *  
-	 *  @param byte[]
-	 *  			byte array representation of image from camera preview
+	 * Called on the detector thread after every processed frame. 
 	 */
-	private class FaceDetectionAsyncTask extends AsyncTask<byte[], Void, Boolean>
-	{
-
+	private final FaceDetectionPipeline.Callback mPipelineCallback = new FaceDetectionPipeline.Callback() {
 		@Override
-		protected Boolean doInBackground(byte[]... _images) {
-
-			for (int i = 0; i < mCopiedData.length; i++) {
-				int pixel = mCopiedData[i]; 
-				//pixel = pixel > 0 ? pixel : pixel + 255;
-				mDecodedData[i] = 0xFF000000 | pixel << 16 | pixel << 8 | pixel << 0;
+		public void onFacesDetected(Face[] faces, int count, long detectNanos) {
+			if( count > 0 ){
+				// PROCESS FOUND FACE
+				Log.e(TAG, "HEY, Found a FACE!!!!!");
+				ActionEventBus bus = mEventBus; 
+				if( bus != null ) bus.publish(ActionEvent.TYPE_FACE_DETECTED, System.currentTimeMillis(), 0, count, null); 
+				if( mBroadcastEnabled ) mHandler.post(mFaceFound); 
 			}
+		}
 
-			mBitmap.setPixels(mDecodedData, 0, IMAGE_WIDTH, 0, 0, IMAGE_WIDTH, IMAGE_HEIGHT);
-			try{
-				if (mFaceDetector.findFaces(mBitmap, mFaces) > 0) {
-					// PROCESS FOUND FACE
-					Log.e(TAG, "HEY, Found a FACE!!!!!");
-					//final PointF point = new PointF();
-					//mFaces[0].getMidPoint(point);
-					//final float eyesDistance = mFaces[0].eyesDistance();
-					return true; 
-				}
-			}catch(IllegalArgumentException e){
-				//TODO: what do we want to do on exception ? 
-				throw new RuntimeException("Incorrect deminstions in setup of " +
-						"CameraFaceDetction. findFaces IllegaleArgumentExcpetion");
+		@Override
+		public void onFrameProcessed(long busyNanos) {
+			FrameRateGovernor governor = mGovernor; 
+			if( governor != null && governor.onFrameProcessed(SystemClock.uptimeMillis(), busyNanos) ){
+				mPipeline.setDetectionInterval(governor.getDetectionInterval());
+				mHandler.post(mApplyFpsRange); 
 			}
-			return false;
 		}
-		/*
-		 * (non-Javadoc)
-		 * @see android.os.AsyncTask#onPostExecute(java.lang.Object)
-		 * 
-		 * Sends out local braodcast that face was detected. 
-		 */
+	};
+	/*
+	 * Apply the governor's preview fps range, on the main thread. 
+	 */
+	private final Runnable mApplyFpsRange = new Runnable() {
 		@Override
-		protected void onPostExecute(Boolean result){
-			mBusyFindFaces = false; 
-			if(result){
-				Toast.makeText(mCtx, "Found your face", Toast.LENGTH_SHORT).show();
-				//TODO: Should we send back the face? 
-				Intent intent = new Intent();
-				intent.setAction(mActionName);
-				LocalBroadcastManager.getInstance(mCtx).sendBroadcast(intent);
+		public void run() {
+			if( mCamera == null || mGovernor == null ) return; 
+			int[] range = mGovernor.getFpsRange(); 
+			if( range == mAppliedFpsRange ) return; 
+			try{
+				Camera.Parameters parameters = mCamera.getParameters();
+				parameters.setPreviewFpsRange(range[0], range[1]);
+				mCamera.setParameters(parameters);
+				mAppliedFpsRange = range; 
+			}catch( RuntimeException e ){
+				Log.e(TAG, "could not change preview fps range", e); 
 			}
 		}
-
-	}
+	};
+	/*
+	 * Sends out local braodcast that face was detected. 
+	 */
+	private final Runnable mFaceFound = new Runnable() {
+		@Override
+		public void run() {
+			Toast.makeText(mCtx, "Found your face", Toast.LENGTH_SHORT).show();
+			//TODO: Should we send back the face? 
+			Intent intent = new Intent();
+			intent.setAction(mActionName);
+			LocalBroadcastManager.getInstance(mCtx).sendBroadcast(intent);
+		}
+	};
 
 }
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2013 StoryScape Project. All rights reserved.
+ *  
+ * 
+ */
+package fslt.lib.actions;
+
+/**
+ * Triggers when a level rises more than threshold above an exponentially
+ * weighted moving average of the ambient level, the same rule
+ * SoundLevelDetection has always used. The average is learned for
+ * ambientSamples levels first, and again after every trigger.
+ * <p>
+ * A refractory period suppresses triggers for a while after each one, and
+ * hysteresis keeps the trigger disarmed until the level has dropped back below
+ * threshold - hysteresis, so one long loud sound gives one event instead of a
+ * burst. Both default to 0, which is the original behaviour.
+ */
+public class EwmaSoundTrigger implements SoundTrigger {
+
+	private final int mAmbientSamples;
+	private final double mResponse;
+	private final double mThreshold;
+	// set from the main thread while a detector thread is feeding levels
+	private volatile long mRefractoryMillis;
+	private volatile double mHysteresis;
+
+	private double mEwma;
+	private int mSamples;
+	private boolean mPrimed;
+	private boolean mArmed = true;
+	private boolean mTriggered;
+	private long mLastTriggerMillis;
+	private double mLastDifference;
+
+	/**
+	 * @param ambientSamples
+	 *            number of levels used to learn the ambient level
+	 * @param response
+	 *            how quickly the ewma follows the level, 0 to 1, higher is
+	 *            faster
+	 * @param threshold
+	 *            how far above the ewma a level has to be to trigger
+	 */
+	public EwmaSoundTrigger(int ambientSamples, double response, double threshold) {
+		mAmbientSamples = ambientSamples;
+		mResponse = response;
+		mThreshold = threshold;
+	}
+
+	@Override
+	public boolean onLevel(double level, long timeMillis) {
+		if (!mPrimed) {
+			mEwma = level;
+			mPrimed = true;
+		}
+		mEwma = mResponse * level + (1 - mResponse) * mEwma;
+		if (mSamples < mAmbientSamples) {
+			mSamples++;
+		}
+		mLastDifference = level - mEwma;
+		if (!mArmed && mLastDifference < mThreshold - mHysteresis) {
+			mArmed = true;
+		}
+		if (mTriggered && timeMillis - mLastTriggerMillis < mRefractoryMillis) {
+			return false;
+		}
+		if (mArmed && mSamples >= mAmbientSamples && mLastDifference > mThreshold) {
+			// resample ambient sound
+			mSamples = 0;
+			mArmed = mHysteresis <= 0;
+			mTriggered = true;
+			mLastTriggerMillis = timeMillis;
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void reset() {
+		mPrimed = false;
+		mSamples = 0;
+		mLastDifference = 0;
+		mArmed = true;
+		mTriggered = false;
+	}
+
+	/**
+	 * @param refractoryMillis
+	 *            minimum time between two triggers
+	 */
+	public void setRefractoryPeriod(long refractoryMillis) {
+		mRefractoryMillis = refractoryMillis;
+	}
+
+	/**
+	 * @param hysteresis
+	 *            how far below the threshold the level has to drop before the
+	 *            next trigger, in the unit of the levels
+	 */
+	public void setHysteresis(double hysteresis) {
+		mHysteresis = hysteresis;
+	}
+
+	/** @return current ambient level estimate */
+	public double getAmbientLevel() {
+		return mEwma;
+	}
+
+	/** @return how far the latest level was above the ambient estimate */
+	public double getLastDifference() {
+		return mLastDifference;
+	}
+}
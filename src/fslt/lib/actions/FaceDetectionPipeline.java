@@ -0,0 +1,308 @@
+/*
+ * Copyright 2013 StoryScape Project. All rights reserved.
+ *  
+ * 
+ */
+package fslt.lib.actions;
+
+import java.nio.ShortBuffer;
+
+import android.graphics.Bitmap;
+import android.hardware.Camera;
+import android.media.FaceDetector;
+import android.media.FaceDetector.Face;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Preview frame pipeline behind CameraFaceDetectionView. The camera fills a
+ * small ring of preallocated preview buffers (Camera.addCallbackBuffer), one
+ * long lived detector thread takes at most one frame at a time and every
+ * frame that arrives while it is busy goes straight back to the camera. The
+ * luma plane of the NV21 frame is subsampled into a detection size luma
+ * copy, the buffer is returned to the camera, and the copy is turned into an
+ * RGB_565 grayscale bitmap with a plain arithmetic loop and a single
+ * copyPixelsFromBuffer, so nothing is allocated per frame.
+ * <p>
+ * With a FaceTracker the detector only runs on every detection interval'th
+ * frame, the frames in between are handed to the tracker's template matching.
+ * Without one the frames in between are skipped.
+ * <p>
+ * offerFrame() must be called from the camera's preview callback, Callback
+ * methods are called on the detector thread.
+ */
+class FaceDetectionPipeline {
+	private static final String TAG = FaceDetectionPipeline.class.getSimpleName();
+
+	static final int DEFAULT_BUFFER_COUNT = 3;
+
+	interface Callback {
+		/**
+		 * @param faces
+		 *            detector output, only the first count entries are valid and
+		 *            only until this method returns
+		 * @param detectNanos
+		 *            time spent converting and detecting
+		 */
+		void onFacesDetected(Face[] faces, int count, long detectNanos);
+
+		/**
+		 * Called after every frame the detector thread processed, detected or
+		 * tracked.
+		 *
+		 * @param busyNanos
+		 *            time the detector thread spent on the frame
+		 */
+		void onFrameProcessed(long busyNanos);
+	}
+
+	private final int mWidth;
+	private final int mHeight;
+	private final int mDownscale;
+	// detection frame size
+	private final int mDetectWidth;
+	private final int mDetectHeight;
+	private final byte[][] mBuffers;
+	private final byte[] mLuma;
+	private final short[] mPixels;
+	private final ShortBuffer mPixelBuffer;
+	private final Bitmap mBitmap;
+	private final FaceDetector mFaceDetector;
+	private final Face[] mFaces;
+	private final Callback mCallback;
+	private final FaceTracker mTracker;
+	private final Object mLock = new Object();
+	private volatile int mDetectionInterval = 1;
+	private long mProcessedCount;
+
+	private Camera mCamera;
+	// frame handed to the detector thread, null when it is idle
+	private byte[] mPendingFrame;
+	private boolean mBusy;
+	private Thread mThread;
+	private volatile boolean mRunning;
+
+	private long mFrameCount;
+	private long mDroppedCount;
+	private long mSkippedCount;
+
+	/**
+	 * @param width
+	 *            preview width
+	 * @param height
+	 *            preview height
+	 * @param maxFaces
+	 *            most faces the detector reports per frame
+	 * @param downscale
+	 *            preview pixels per detection pixel in each direction
+	 * @param trackingListener
+	 *            receives face events from a FaceTracker, or null to only
+	 *            detect
+	 */
+	FaceDetectionPipeline(int width, int height, int maxFaces, int bufferCount, int downscale, Callback callback,
+			FaceTracker.Listener trackingListener) {
+		mWidth = width;
+		mHeight = height;
+		mDownscale = Math.max(1, downscale);
+		// FaceDetector needs an even width
+		mDetectWidth = (width / mDownscale) & ~1;
+		mDetectHeight = height / mDownscale;
+		mCallback = callback;
+		mTracker = trackingListener == null ? null : new FaceTracker(maxFaces, mDownscale, trackingListener);
+		// NV21: full size luma plane followed by a half size interleaved chroma plane
+		int frameBytes = width * height * 3 / 2;
+		mBuffers = new byte[bufferCount][];
+		for (int i = 0; i < bufferCount; i++) {
+			mBuffers[i] = new byte[frameBytes];
+		}
+		mLuma = new byte[mDetectWidth * mDetectHeight];
+		mPixels = new short[mDetectWidth * mDetectHeight];
+		mPixelBuffer = ShortBuffer.wrap(mPixels);
+		mBitmap = Bitmap.createBitmap(mDetectWidth, mDetectHeight, Bitmap.Config.RGB_565);
+		mFaceDetector = new FaceDetector(mDetectWidth, mDetectHeight, maxFaces);
+		mFaces = new Face[maxFaces];
+	}
+
+	/**
+	 * @param interval
+	 *            run the detector on every interval'th frame, tracking or
+	 *            skipping the frames in between
+	 */
+	void setDetectionInterval(int interval) {
+		mDetectionInterval = Math.max(1, interval);
+	}
+
+	int getDetectionInterval() {
+		return mDetectionInterval;
+	}
+
+	/**
+	 * Hand the buffer ring to camera and start the detector thread. The camera
+	 * must use NV21 previews of the pipeline's size and deliver them with
+	 * setPreviewCallbackWithBuffer().
+	 */
+	void start(Camera camera) {
+		synchronized (mLock) {
+			mCamera = camera;
+			mPendingFrame = null;
+			mBusy = false;
+		}
+		for (byte[] buffer : mBuffers) {
+			camera.addCallbackBuffer(buffer);
+		}
+		mRunning = true;
+		mThread = new Thread(mDetectLoop, TAG);
+		mThread.start();
+	}
+
+	/**
+	 * Stop the detector thread and let go of the camera, call before the
+	 * camera is released.
+	 */
+	void stop() {
+		if (mThread == null) {
+			return;
+		}
+		synchronized (mLock) {
+			mCamera = null;
+			mRunning = false;
+			mLock.notifyAll();
+		}
+		try {
+			mThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		mThread = null;
+		if (mTracker != null) {
+			mTracker.clear();
+		}
+	}
+
+	/**
+	 * Give a preview buffer to the detector, or straight back to the camera
+	 * if the detector is busy.
+	 */
+	void offerFrame(byte[] data, Camera camera) {
+		if (data == null) {
+			return;
+		}
+		synchronized (mLock) {
+			mFrameCount++;
+			if (mTracker == null && mFrameCount % mDetectionInterval != 0) {
+				mSkippedCount++;
+			} else if (!mBusy && mRunning) {
+				mBusy = true;
+				mPendingFrame = data;
+				mLock.notifyAll();
+				return;
+			} else {
+				mDroppedCount++;
+			}
+		}
+		camera.addCallbackBuffer(data);
+	}
+
+	private final Runnable mDetectLoop = new Runnable() {
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			while (true) {
+				byte[] frame;
+				synchronized (mLock) {
+					while (mRunning && mPendingFrame == null) {
+						try {
+							mLock.wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					if (!mRunning) {
+						return;
+					}
+					frame = mPendingFrame;
+					mPendingFrame = null;
+				}
+				long start = System.nanoTime();
+				subsampleLuma(frame);
+				synchronized (mLock) {
+					mBusy = false;
+					if (mCamera != null) {
+						mCamera.addCallbackBuffer(frame);
+					}
+				}
+				if (mTracker != null && mProcessedCount++ % mDetectionInterval != 0) {
+					mTracker.track(mLuma, mDetectWidth, mDetectHeight);
+					mCallback.onFrameProcessed(System.nanoTime() - start);
+					continue;
+				}
+				int count = detect();
+				if (mTracker != null) {
+					mTracker.update(mFaces, count, mLuma, mDetectWidth, mDetectHeight);
+				}
+				long elapsed = System.nanoTime() - start;
+				mCallback.onFacesDetected(mFaces, count, elapsed);
+				mCallback.onFrameProcessed(elapsed);
+			}
+		}
+	};
+
+	private void subsampleLuma(byte[] frame) {
+		if (mDownscale == 1 && mDetectWidth == mWidth) {
+			System.arraycopy(frame, 0, mLuma, 0, mLuma.length);
+			return;
+		}
+		int i = 0;
+		for (int y = 0; y < mDetectHeight; y++) {
+			int row = y * mDownscale * mWidth;
+			for (int x = 0; x < mDetectWidth; x++) {
+				mLuma[i++] = frame[row + x * mDownscale];
+			}
+		}
+	}
+
+	private int detect() {
+		lumaToRgb565(mLuma, mPixels, mLuma.length);
+		mPixelBuffer.rewind();
+		mBitmap.copyPixelsFromBuffer(mPixelBuffer);
+		try {
+			return mFaceDetector.findFaces(mBitmap, mFaces);
+		} catch (IllegalArgumentException e) {
+			Log.e(TAG, "findFaces rejected a " + mDetectWidth + "x" + mDetectHeight + " frame", e);
+			return 0;
+		}
+	}
+
+	/**
+	 * Expand 8 bit luma into gray RGB_565. Bytes are masked to 0-255 before
+	 * use, a plain byte to int conversion would turn everything brighter than
+	 * 127 negative.
+	 */
+	static void lumaToRgb565(byte[] luma, short[] rgb565, int count) {
+		for (int i = 0; i < count; i++) {
+			int y = luma[i] & 0xFF;
+			rgb565[i] = (short) (((y >> 3) << 11) | ((y >> 2) << 5) | (y >> 3));
+		}
+	}
+
+	/** @return frames delivered by the camera */
+	long getFrameCount() {
+		synchronized (mLock) {
+			return mFrameCount;
+		}
+	}
+
+	/** @return frames skipped between detection intervals */
+	long getSkippedCount() {
+		synchronized (mLock) {
+			return mSkippedCount;
+		}
+	}
+
+	/** @return frames returned to the camera unprocessed because the detector was busy */
+	long getDroppedCount() {
+		synchronized (mLock) {
+			return mDroppedCount;
+		}
+	}
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2013 StoryScape Project. All rights reserved.
+ *  
+ * 
+ */
+package fslt.lib.actions;
+
+import android.graphics.PointF;
+import android.media.FaceDetector;
+import android.media.FaceDetector.Face;
+
+/**
+ * Follows faces across preview frames. Detector results are associated with
+ * the existing tracks by midpoint distance, a face is matched to the nearest
+ * track whose midpoint is less than one eye distance away. On frames without
+ * a detection each track is moved by matching a small luma template, taken
+ * at the last detection, within a few pixels of its last position, which
+ * costs a fraction of a FaceDetector run.
+ * <p>
+ * A track that is not matched by MAX_MISSED_DETECTIONS detections in a row
+ * leaves. Positions are in preview pixels. Listener callbacks are called on
+ * the detector thread, except the leave events sent when detection stops.
+ */
+public class FaceTracker {
+
+	/**
+	 * Face events, override the ones of interest.
+	 */
+	public static abstract class Listener {
+		/**
+		 * @param id
+		 *            track id, unique for the life of the tracker
+		 * @param midX
+		 *            x of the point between the eyes
+		 * @param midY
+		 *            y of the point between the eyes
+		 * @param eyesDistance
+		 *            distance between the eyes
+		 */
+		public void onFaceEntered(int id, float midX, float midY, float eyesDistance) {
+		}
+
+		public void onFaceMoved(int id, float midX, float midY, float eyesDistance) {
+		}
+
+		public void onFaceLeft(int id) {
+		}
+	}
+
+	static final int MAX_MISSED_DETECTIONS = 2;
+	// template samples per side
+	private static final int PATCH = 12;
+	private static final int MAX_SEARCH_RADIUS = 8;
+	// mean absolute luma difference above which a template match is ignored
+	private static final int MAX_MEAN_DIFFERENCE = 40;
+	// smaller moves are not reported
+	private static final float MIN_MOVE = 1f;
+
+	private final int mMaxFaces;
+	private final float mScale;
+	private final Listener mListener;
+	private final PointF mPoint = new PointF();
+
+	// tracks, in detection frame pixels
+	private final boolean[] mActive;
+	private final int[] mIds;
+	private final float[] mX;
+	private final float[] mY;
+	private final float[] mEyes;
+	private final int[] mMissed;
+	private final float[] mReportedX;
+	private final float[] mReportedY;
+	private final int[] mSpacing;
+	private final byte[][] mTemplates;
+	private final boolean[] mMatched;
+	private int mNextId = 1;
+	private int mTrackCount;
+
+	/**
+	 * @param maxFaces
+	 *            most faces tracked at once
+	 * @param scale
+	 *            preview pixels per detection frame pixel
+	 */
+	FaceTracker(int maxFaces, float scale, Listener listener) {
+		mMaxFaces = maxFaces;
+		mScale = scale;
+		mListener = listener;
+		mActive = new boolean[maxFaces];
+		mIds = new int[maxFaces];
+		mX = new float[maxFaces];
+		mY = new float[maxFaces];
+		mEyes = new float[maxFaces];
+		mMissed = new int[maxFaces];
+		mReportedX = new float[maxFaces];
+		mReportedY = new float[maxFaces];
+		mSpacing = new int[maxFaces];
+		mTemplates = new byte[maxFaces][PATCH * PATCH];
+		mMatched = new boolean[maxFaces];
+	}
+
+	/**
+	 * Associate a detection result with the tracks.
+	 */
+	void update(Face[] faces, int count, byte[] luma, int width, int height) {
+		for (int t = 0; t < mMaxFaces; t++) {
+			mMatched[t] = false;
+		}
+		for (int f = 0; f < count; f++) {
+			Face face = faces[f];
+			if (face.confidence() < FaceDetector.Face.CONFIDENCE_THRESHOLD) {
+				continue;
+			}
+			face.getMidPoint(mPoint);
+			float eyes = face.eyesDistance();
+			int best = -1;
+			float bestDistance = eyes * eyes;
+			for (int t = 0; t < mMaxFaces; t++) {
+				if (!mActive[t] || mMatched[t]) {
+					continue;
+				}
+				float dx = mX[t] - mPoint.x;
+				float dy = mY[t] - mPoint.y;
+				float distance = dx * dx + dy * dy;
+				if (distance < bestDistance) {
+					bestDistance = distance;
+					best = t;
+				}
+			}
+			if (best == -1) {
+				best = freeSlot();
+				if (best == -1) {
+					continue;
+				}
+				mActive[best] = true;
+				mIds[best] = mNextId++;
+				mTrackCount++;
+				set(best, mPoint.x, mPoint.y, eyes, luma, width, height);
+				mReportedX[best] = mPoint.x;
+				mReportedY[best] = mPoint.y;
+				mListener.onFaceEntered(mIds[best], mPoint.x * mScale, mPoint.y * mScale, eyes * mScale);
+			} else {
+				set(best, mPoint.x, mPoint.y, eyes, luma, width, height);
+				reportMove(best);
+			}
+			mMatched[best] = true;
+		}
+		for (int t = 0; t < mMaxFaces; t++) {
+			if (mActive[t] && !mMatched[t] && ++mMissed[t] >= MAX_MISSED_DETECTIONS) {
+				mActive[t] = false;
+				mTrackCount--;
+				mListener.onFaceLeft(mIds[t]);
+			}
+		}
+	}
+
+	/**
+	 * Move the tracks on a frame without detection by template matching.
+	 */
+	void track(byte[] luma, int width, int height) {
+		for (int t = 0; t < mMaxFaces; t++) {
+			if (!mActive[t]) {
+				continue;
+			}
+			int cx = Math.round(mX[t]);
+			int cy = Math.round(mY[t]);
+			int radius = Math.min(MAX_SEARCH_RADIUS, Math.max(2, Math.round(mEyes[t] / 2)));
+			int bestSad = Integer.MAX_VALUE;
+			int bestDx = 0;
+			int bestDy = 0;
+			for (int dy = -radius; dy <= radius; dy++) {
+				for (int dx = -radius; dx <= radius; dx++) {
+					int sad = sad(mTemplates[t], mSpacing[t], luma, width, height, cx + dx, cy + dy, bestSad);
+					if (sad < bestSad) {
+						bestSad = sad;
+						bestDx = dx;
+						bestDy = dy;
+					}
+				}
+			}
+			if (bestSad <= MAX_MEAN_DIFFERENCE * PATCH * PATCH && (bestDx != 0 || bestDy != 0)) {
+				mX[t] = cx + bestDx;
+				mY[t] = cy + bestDy;
+				reportMove(t);
+			}
+		}
+	}
+
+	/**
+	 * Report every active track as left and forget them.
+	 */
+	void clear() {
+		for (int t = 0; t < mMaxFaces; t++) {
+			if (mActive[t]) {
+				mActive[t] = false;
+				mListener.onFaceLeft(mIds[t]);
+			}
+		}
+		mTrackCount = 0;
+	}
+
+	/** @return number of faces currently tracked */
+	int getTrackCount() {
+		return mTrackCount;
+	}
+
+	private int freeSlot() {
+		for (int t = 0; t < mMaxFaces; t++) {
+			if (!mActive[t]) {
+				return t;
+			}
+		}
+		return -1;
+	}
+
+	private void set(int t, float x, float y, float eyes, byte[] luma, int width, int height) {
+		mX[t] = x;
+		mY[t] = y;
+		mEyes[t] = eyes;
+		mMissed[t] = 0;
+		// a face is roughly two eye distances across
+		mSpacing[t] = Math.max(1, Math.round(eyes * 2 / PATCH));
+		sample(mTemplates[t], mSpacing[t], luma, width, height, Math.round(x), Math.round(y));
+	}
+
+	private void reportMove(int t) {
+		float dx = mX[t] - mReportedX[t];
+		float dy = mY[t] - mReportedY[t];
+		if (dx * dx + dy * dy >= MIN_MOVE * MIN_MOVE) {
+			mReportedX[t] = mX[t];
+			mReportedY[t] = mY[t];
+			mListener.onFaceMoved(mIds[t], mX[t] * mScale, mY[t] * mScale, mEyes[t] * mScale);
+		}
+	}
+
+	private static void sample(byte[] patch, int spacing, byte[] luma, int width, int height, int cx, int cy) {
+		int origin = -(PATCH / 2) * spacing;
+		int i = 0;
+		for (int py = 0; py < PATCH; py++) {
+			int y = clamp(cy + origin + py * spacing, height);
+			for (int px = 0; px < PATCH; px++) {
+				int x = clamp(cx + origin + px * spacing, width);
+				patch[i++] = luma[y * width + x];
+			}
+		}
+	}
+
+	/*
+	 * Sum of absolute differences between patch and the image around cx, cy,
+	 * gives up once it exceeds limit.
+	 */
+	private static int sad(byte[] patch, int spacing, byte[] luma, int width, int height, int cx, int cy, int limit) {
+		int origin = -(PATCH / 2) * spacing;
+		int sum = 0;
+		int i = 0;
+		for (int py = 0; py < PATCH; py++) {
+			int row = clamp(cy + origin + py * spacing, height) * width;
+			for (int px = 0; px < PATCH; px++) {
+				int x = clamp(cx + origin + px * spacing, width);
+				int d = (patch[i++] & 0xFF) - (luma[row + x] & 0xFF);
+				sum += d < 0 ? -d : d;
+			}
+			if (sum >= limit) {
+				return sum;
+			}
+		}
+		return sum;
+	}
+
+	private static int clamp(int value, int size) {
+		return value < 0 ? 0 : (value >= size ? size - 1 : value);
+	}
+}
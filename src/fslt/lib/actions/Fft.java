@@ -0,0 +1,80 @@
+/*
+ * Copyright 2013 StoryScape Project. All rights reserved.
+ *  
+ * 
+ */
+package fslt.lib.actions;
+
+/**
+ * In place iterative radix-2 FFT of one fixed size. Twiddle factors and the
+ * bit reversal permutation are computed once in the constructor, transform()
+ * then does exactly the same (N/2) log2(N) butterflies for every input and
+ * never allocates. Plain Java, no Android dependency.
+ */
+public class Fft {
+	private final int mSize;
+	private final int[] mReversed;
+	private final double[] mCos;
+	private final double[] mSin;
+
+	/**
+	 * @param size
+	 *            number of points, a power of 2
+	 */
+	public Fft(int size) {
+		if (size < 2 || (size & (size - 1)) != 0) {
+			throw new IllegalArgumentException("FFT size must be a power of 2: " + size);
+		}
+		mSize = size;
+		int bits = Integer.numberOfTrailingZeros(size);
+		mReversed = new int[size];
+		for (int i = 0; i < size; i++) {
+			mReversed[i] = Integer.reverse(i) >>> (32 - bits);
+		}
+		mCos = new double[size / 2];
+		mSin = new double[size / 2];
+		for (int i = 0; i < size / 2; i++) {
+			mCos[i] = Math.cos(-2 * Math.PI * i / size);
+			mSin[i] = Math.sin(-2 * Math.PI * i / size);
+		}
+	}
+
+	public int getSize() {
+		return mSize;
+	}
+
+	/**
+	 * Forward transform of re + i*im, both of length getSize(), in place.
+	 */
+	public void transform(double[] re, double[] im) {
+		int n = mSize;
+		for (int i = 0; i < n; i++) {
+			int j = mReversed[i];
+			if (j > i) {
+				double t = re[i];
+				re[i] = re[j];
+				re[j] = t;
+				t = im[i];
+				im[i] = im[j];
+				im[j] = t;
+			}
+		}
+		for (int half = 1; half < n; half <<= 1) {
+			int step = n / (half << 1);
+			for (int start = 0; start < n; start += half << 1) {
+				for (int k = 0; k < half; k++) {
+					double wr = mCos[k * step];
+					double wi = mSin[k * step];
+					int a = start + k;
+					int b = a + half;
+					double tr = wr * re[b] - wi * im[b];
+					double ti = wr * im[b] + wi * re[b];
+					re[b] = re[a] - tr;
+					im[b] = im[a] - ti;
+					re[a] += tr;
+					im[a] += ti;
+				}
+			}
+		}
+	}
+}
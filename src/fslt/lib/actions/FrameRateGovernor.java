@@ -0,0 +1,162 @@
+/*
+ * Copyright 2013 StoryScape Project. All rights reserved.
+ *  
+ * 
+ */
+package fslt.lib.actions;
+
+import java.util.List;
+
+/**
+ * Keeps camera based detection at a target CPU duty cycle, the fraction of
+ * wall time the detector thread spends working. Every WINDOW_MILLIS the
+ * measured duty cycle is compared with the target. Above it, the preview frame
+ * rate is lowered one supported step and, once at the lowest rate, the
+ * detection interval is raised. Well below it, the interval comes down first
+ * and then the frame rate goes back up. The gap between the two thresholds
+ * keeps the governor from flapping.
+ * <p>
+ * Frames are reported on the detector thread, the getters may be called from
+ * any thread.
+ */
+public class FrameRateGovernor {
+	public static final float DEFAULT_TARGET_DUTY_CYCLE = 0.3f;
+	public static final int DEFAULT_MAX_DETECTION_INTERVAL = 8;
+
+	static final long WINDOW_MILLIS = 2000;
+	// speed up only once well below the target
+	private static final float LOW_WATER = 0.6f;
+	// latency EWMA weight of the newest frame
+	private static final float LATENCY_RESPONSE = 0.2f;
+
+	private final int[][] mFpsRanges;
+	private final int mMaxDetectionInterval;
+	private volatile float mTargetDutyCycle;
+
+	private volatile int mFpsIndex;
+	private volatile int mDetectionInterval = 1;
+	private volatile float mDutyCycle;
+	private volatile long mLatencyNanos;
+	private volatile long mAdjustmentCount;
+
+	private long mWindowStart;
+	private long mWindowBusy;
+
+	/**
+	 * @param fpsRanges
+	 *            supported preview fps ranges as from
+	 *            Camera.Parameters.getSupportedPreviewFpsRange(), sorted by
+	 *            ascending maximum
+	 * @param initialMaxFps
+	 *            start with the fastest range whose maximum is at most this,
+	 *            in frames per second times 1000
+	 */
+	public FrameRateGovernor(List<int[]> fpsRanges, int initialMaxFps, float targetDutyCycle,
+			int maxDetectionInterval) {
+		if (fpsRanges == null || fpsRanges.isEmpty()) {
+			throw new IllegalArgumentException("no preview fps ranges");
+		}
+		mFpsRanges = fpsRanges.toArray(new int[fpsRanges.size()][]);
+		mMaxDetectionInterval = Math.max(1, maxDetectionInterval);
+		mTargetDutyCycle = targetDutyCycle;
+		int index = 0;
+		for (int i = 0; i < mFpsRanges.length; i++) {
+			if (mFpsRanges[i][1] <= initialMaxFps) {
+				index = i;
+			}
+		}
+		mFpsIndex = index;
+	}
+
+	/**
+	 * Account one processed frame.
+	 *
+	 * @param nowMillis
+	 *            current time, from a monotonic clock
+	 * @param busyNanos
+	 *            time the detector thread spent on the frame
+	 * @return true if the preview fps range or the detection interval changed
+	 */
+	public boolean onFrameProcessed(long nowMillis, long busyNanos) {
+		mLatencyNanos = mLatencyNanos == 0 ? busyNanos
+				: (long) (LATENCY_RESPONSE * busyNanos + (1 - LATENCY_RESPONSE) * mLatencyNanos);
+		if (mWindowStart == 0) {
+			mWindowStart = nowMillis;
+		}
+		mWindowBusy += busyNanos;
+		long elapsed = nowMillis - mWindowStart;
+		if (elapsed < WINDOW_MILLIS) {
+			return false;
+		}
+		float duty = mWindowBusy / (elapsed * 1000000f);
+		mDutyCycle = duty;
+		mWindowStart = nowMillis;
+		mWindowBusy = 0;
+
+		float target = mTargetDutyCycle;
+		boolean changed = false;
+		if (duty > target) {
+			if (mFpsIndex > 0) {
+				mFpsIndex--;
+				changed = true;
+			} else if (mDetectionInterval < mMaxDetectionInterval) {
+				mDetectionInterval++;
+				changed = true;
+			}
+		} else if (duty < target * LOW_WATER) {
+			if (mDetectionInterval > 1) {
+				mDetectionInterval--;
+				changed = true;
+			} else if (mFpsIndex < mFpsRanges.length - 1) {
+				mFpsIndex++;
+				changed = true;
+			}
+		}
+		if (changed) {
+			mAdjustmentCount++;
+		}
+		return changed;
+	}
+
+	/**
+	 * @param targetDutyCycle
+	 *            fraction of time the detector thread may be busy, e.g. lower
+	 *            it when the battery runs low
+	 */
+	public void setTargetDutyCycle(float targetDutyCycle) {
+		mTargetDutyCycle = targetDutyCycle;
+	}
+
+	public float getTargetDutyCycle() {
+		return mTargetDutyCycle;
+	}
+
+	/** @return preview fps range to use, {min, max} in frames per second times 1000 */
+	public int[] getFpsRange() {
+		return mFpsRanges[mFpsIndex];
+	}
+
+	/** @return current preview rate in frames per second */
+	public float getFps() {
+		return mFpsRanges[mFpsIndex][1] / 1000f;
+	}
+
+	public int getDetectionInterval() {
+		return mDetectionInterval;
+	}
+
+	/** @return duty cycle measured over the last window */
+	public float getDutyCycle() {
+		return mDutyCycle;
+	}
+
+	/** @return smoothed time the detector thread spends per processed frame */
+	public long getLatencyNanos() {
+		return mLatencyNanos;
+	}
+
+	/** @return number of times the rate or interval was changed */
+	public long getAdjustmentCount() {
+		return mAdjustmentCount;
+	}
+}
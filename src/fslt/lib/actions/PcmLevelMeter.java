@@ -0,0 +1,70 @@
+/*
+ * Copyright 2013 StoryScape Project. All rights reserved.
+ *  
+ * 
+ */
+package fslt.lib.actions;
+
+/**
+ * Measures the level of one frame of 16 bit PCM audio, RMS and peak in dB
+ * relative to full scale (0 dBFS is the loudest possible sample). Plain Java
+ * with no Android dependency and no allocation, so frames read from
+ * AudioRecord and frames read from a WAV file on a desktop JVM are measured
+ * the same way.
+ */
+public class PcmLevelMeter {
+
+	/**
+	 * Level of a frame of silence, the level of a single quantization step,
+	 * about -90.3 dBFS
+	 */
+	public static final double SILENCE_DB = 20 * Math.log10(1.0 / 32768);
+
+	private double mRmsDb = SILENCE_DB;
+	private double mPeakDb = SILENCE_DB;
+	private int mPeak;
+
+	/**
+	 * Measure samples [offset, offset + length) of frame, read the result
+	 * with getRmsDb, getPeakDb and getPeakAmplitude.
+	 */
+	public void measure(short[] frame, int offset, int length) {
+		long sumOfSquares = 0;
+		int peak = 0;
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			int sample = frame[i];
+			sumOfSquares += sample * sample;
+			int magnitude = sample < 0 ? -sample : sample;
+			if (magnitude > peak) {
+				peak = magnitude;
+			}
+		}
+		mPeak = peak;
+		mPeakDb = toDb(peak);
+		mRmsDb = length == 0 ? SILENCE_DB : toDb(Math.sqrt((double) sumOfSquares / length));
+	}
+
+	/**
+	 * @return dBFS of a linear 16 bit amplitude, SILENCE_DB for 0
+	 */
+	public static double toDb(double amplitude) {
+		if (amplitude < 1) {
+			return SILENCE_DB;
+		}
+		return 20 * Math.log10(amplitude / 32768);
+	}
+
+	public double getRmsDb() {
+		return mRmsDb;
+	}
+
+	public double getPeakDb() {
+		return mPeakDb;
+	}
+
+	/** @return largest sample magnitude of the frame, same scale as MediaRecorder.getMaxAmplitude() */
+	public int getPeakAmplitude() {
+		return mPeak;
+	}
+}
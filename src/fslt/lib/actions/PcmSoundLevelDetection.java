@@ -0,0 +1,292 @@
+/*
+ * Copyright 2013 StoryScape Project. All rights reserved.
+ *
+ *
+ */
+package fslt.lib.actions;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * PcmSoundLevelDetection detects sound events like SoundLevelDetection, but
+ * reads raw 16 bit PCM from an AudioRecord instead of polling
+ * MediaRecorder.getMaxAmplitude() on an encoder writing to /dev/null. Each
+ * frame is read into one reused short[], measured by a PcmLevelMeter and fed to
+ * a pluggable SoundTrigger, so levels are seen at the frame rate rather than
+ * every poll interval and nothing is allocated per frame.
+ * <p>
+ * Frames are read on a dedicated audio priority thread that blocks in
+ * AudioRecord.read(), it does not take a thread from the shared AsyncTask
+ * executor. Sound events are broadcast with the same action name and extras as
+ * SoundLevelDetection, so existing receivers work unchanged, with DECIBLES
+ * holding the level in dBFS. As with SoundLevelDetection, a SoundLevelListener
+ * receives them without Intents.
+ * <p>
+ * With a SpectralSoundStage set, frames are split into frequency bands and the
+ * stage's per band triggers decide instead of the overall level trigger.
+ * <p>
+ * This class's methods must be invoked only from the main application thread.
+ * The application must have the RECORD_AUDIO permission.
+ *
+ * <pre>
+ * {@code
+ * PcmSoundLevelDetection detection = new PcmSoundLevelDetection(mCtx);
+ * detection.setSoundTrigger(new EwmaSoundTrigger(40, 0.05, 12.0)); // 12 dB above ambient
+ * detection.startSoundLevelDetection();
+ * ...
+ * detection.stopSoundLevelDetection();
+ * }
+ * </pre>
+ */
+public class PcmSoundLevelDetection {
+	private static final String TAG = PcmSoundLevelDetection.class.getSimpleName();
+
+	/** Feed the trigger the frame's peak level */
+	public static final int LEVEL_PEAK = 0;
+	/** Feed the trigger the frame's RMS level */
+	public static final int LEVEL_RMS = 1;
+
+	// 44100 Hz is the only rate guaranteed to work on every device
+	public static final int DEFAULT_SAMPLE_RATE = 44100;
+	// ~23 ms at 44100 Hz
+	public static final int DEFAULT_FRAME_SIZE = 1024;
+
+	private static final int DEFAULT_AMBIENT_FRAMES = 40;
+	private static final double DEFAULT_RESPONSE = 0.05;
+	private static final double DEFAULT_THRESHOLD_DB = 12.0;
+
+	private final String mActionName;
+	private final int mSampleRate;
+	private final int mFrameSize;
+	private final short[] mFrame;
+	private final PcmLevelMeter mMeter = new PcmLevelMeter();
+	private final SoundLevelListeners mListeners = new SoundLevelListeners();
+	private final BroadcastSoundLevelListener mBroadcastListener;
+
+	private volatile SoundTrigger mTrigger;
+	private volatile SpectralSoundStage mSpectralStage;
+	private volatile int mLevelType = LEVEL_PEAK;
+	// owned by the main thread, or by the read loop when a read fails
+	private AudioRecord mRecord;
+	private Thread mThread;
+	private volatile boolean mRunning;
+
+	public PcmSoundLevelDetection(Context context) {
+		this(context, SoundLevelDetection.DEFAULT_ACTION_NAME, DEFAULT_SAMPLE_RATE, DEFAULT_FRAME_SIZE);
+	}
+
+	/**
+	 * @param actionName
+	 *            the intent filter string to broadcast with
+	 * @param sampleRate
+	 *            recording sample rate in Hz
+	 * @param frameSize
+	 *            number of samples measured at a time
+	 */
+	public PcmSoundLevelDetection(Context context, String actionName, int sampleRate, int frameSize) {
+		mActionName = actionName;
+		mSampleRate = sampleRate;
+		mFrameSize = frameSize;
+		mFrame = new short[frameSize];
+		mTrigger = new EwmaSoundTrigger(DEFAULT_AMBIENT_FRAMES, DEFAULT_RESPONSE, DEFAULT_THRESHOLD_DB);
+		mBroadcastListener = new BroadcastSoundLevelListener(context, actionName);
+		mListeners.add(mBroadcastListener);
+	}
+
+	/**
+	 * Receive sound events directly, on the recording thread.
+	 */
+	public void addSoundLevelListener(SoundLevelListener listener) {
+		mListeners.add(listener);
+	}
+
+	public void removeSoundLevelListener(SoundLevelListener listener) {
+		mListeners.remove(listener);
+	}
+
+	/**
+	 * @param enabled
+	 *            false to stop broadcasting sound events, e.g. when only
+	 *            listeners are used
+	 */
+	public void setBroadcastEnabled(boolean enabled) {
+		if (enabled) {
+			mListeners.add(mBroadcastListener);
+		} else {
+			mListeners.remove(mBroadcastListener);
+		}
+	}
+
+	public String getActionName() {
+		return mActionName;
+	}
+
+	/**
+	 * Replace the trigger logic, it is fed one dBFS level per frame on the
+	 * recording thread.
+	 */
+	public void setSoundTrigger(SoundTrigger trigger) {
+		trigger.reset();
+		mTrigger = trigger;
+	}
+
+	/**
+	 * Trigger on frequency bands instead of the overall level, null to go back
+	 * to the level trigger. The stage's FFT size should match the frame size.
+	 */
+	public void setSpectralStage(SpectralSoundStage stage) {
+		if (stage != null) {
+			stage.reset();
+		}
+		mSpectralStage = stage;
+	}
+
+	/**
+	 * @param levelType
+	 *            LEVEL_PEAK (default, reacts to short sounds like claps) or
+	 *            LEVEL_RMS (reacts to sustained sound like talking)
+	 */
+	public void setLevelType(int levelType) {
+		mLevelType = levelType;
+	}
+
+	/**
+	 * Open the microphone and start reading frames.
+	 *
+	 * @return false if the microphone could not be opened
+	 */
+	public boolean startSoundLevelDetection() {
+		if (mRunning) {
+			return true;
+		}
+		int minBuffer = AudioRecord.getMinBufferSize(mSampleRate, AudioFormat.CHANNEL_IN_MONO,
+				AudioFormat.ENCODING_PCM_16BIT);
+		if (minBuffer <= 0) {
+			Log.e(TAG, "unsupported recording format at " + mSampleRate + " Hz");
+			return false;
+		}
+		// room for a few frames so a late read does not drop audio
+		int bufferBytes = Math.max(minBuffer, mFrameSize * 2 * 4);
+		mRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, mSampleRate, AudioFormat.CHANNEL_IN_MONO,
+				AudioFormat.ENCODING_PCM_16BIT, bufferBytes);
+		if (mRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+			Log.e(TAG, "could not open microphone");
+			mRecord.release();
+			mRecord = null;
+			return false;
+		}
+		try {
+			mRecord.startRecording();
+		} catch (IllegalStateException e) {
+			Log.e(TAG, "could not start recording", e);
+			mRecord.release();
+			mRecord = null;
+			return false;
+		}
+		mTrigger.reset();
+		if (mSpectralStage != null) {
+			mSpectralStage.reset();
+		}
+		mRunning = true;
+		mThread = new Thread(mReadLoop, TAG);
+		mThread.start();
+		return true;
+	}
+
+	/**
+	 * Stop reading frames and release the microphone.
+	 */
+	public void stopSoundLevelDetection() {
+		AudioRecord record;
+		Thread thread;
+		synchronized (this) {
+			// also false once the read loop has stopped on an error
+			if (!mRunning) {
+				return;
+			}
+			mRunning = false;
+			record = mRecord;
+			thread = mThread;
+			mRecord = null;
+			mThread = null;
+		}
+		try {
+			record.stop();
+		} catch (IllegalStateException e) {
+			Log.e(TAG, "stop", e);
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		record.release();
+	}
+
+	/*
+	 * The read loop failed, stop as stopSoundLevelDetection would unless it is
+	 * already stopping.
+	 */
+	private void onReadFailed(int error) {
+		Log.e(TAG, "AudioRecord.read failed " + error + ", stopped");
+		AudioRecord record;
+		synchronized (this) {
+			if (!mRunning) {
+				return;
+			}
+			mRunning = false;
+			record = mRecord;
+			mRecord = null;
+			mThread = null;
+		}
+		try {
+			record.stop();
+		} catch (IllegalStateException e) {
+			Log.e(TAG, "stop", e);
+		}
+		record.release();
+	}
+
+	private final Runnable mReadLoop = new Runnable() {
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+			// mRecord is cleared by stopSoundLevelDetection while a read may block
+			AudioRecord record = mRecord;
+			while (mRunning) {
+				int read = record.read(mFrame, 0, mFrameSize);
+				if (read <= 0) {
+					if (read < 0) {
+						onReadFailed(read);
+						return;
+					}
+					continue;
+				}
+				if (SoundLevelDetection.AUDIO_PLAYING) {
+					// frames are still read to drain the recorder, but our own
+					// audio must not reach the triggers' state
+					continue;
+				}
+				long now = System.currentTimeMillis();
+				SpectralSoundStage stage = mSpectralStage;
+				if (stage != null) {
+					int band = stage.process(mFrame, 0, read, now);
+					if (band >= 0) {
+						mListeners.dispatchBand(band, stage.getBandLevelDb(band), now);
+					}
+					continue;
+				}
+				mMeter.measure(mFrame, 0, read);
+				double level = mLevelType == LEVEL_RMS ? mMeter.getRmsDb() : mMeter.getPeakDb();
+				if (mTrigger.onLevel(level, now)) {
+					mListeners.dispatch(level, now);
+				}
+			}
+		}
+	};
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright 2013 StoryScape Project. All rights reserved.
+ *  
+ * 
+ */
+package fslt.lib.actions;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * SensorFusionDetection detects shake, tilt and compass heading gestures from
+ * one accelerometer and one magnetometer subscription. onSensorChanged() only
+ * copies each sample into a primitive ring buffer, the gestures are computed
+ * from the buffered samples at most every EVALUATE_INTERVAL_MS of sensor time.
+ * <p>
+ * On KitKat and later the sensors are registered with a maxReportLatency of
+ * MAX_REPORT_LATENCY_MS, so the sensor hub batches samples and the CPU can
+ * sleep between batches. A sample waits at most MAX_REPORT_LATENCY_MS to be
+ * delivered and EVALUATE_INTERVAL_MS more to be evaluated, so a gesture is
+ * reported within 90 ms. Older devices deliver every sample as it is
+ * measured.
+ * <p>
+ * Shake is the RMS of acceleration without gravity over the last
+ * SHAKE_WINDOW samples, so no square root is taken per sample. Tilt and
+ * heading use a low pass filtered gravity vector.
+ *
+ * <pre>
+ * {@code
+ * SensorFusionDetection detection = new SensorFusionDetection(mCtx, new SensorFusionDetection.Listener() {
+ * 	public void onShake(float strength, long timeMillis) {
+ * 		// do something
+ * 	}
+ * });
+ * detection.start(null);
+ * ...
+ * detection.stop();
+ * }
+ * </pre>
+ */
+public class SensorFusionDetection implements SensorEventListener {
+	private static final String TAG = SensorFusionDetection.class.getSimpleName();
+
+	public static final int TILT_NONE = 0;
+	/** left edge down */
+	public static final int TILT_LEFT = 1;
+	/** right edge down */
+	public static final int TILT_RIGHT = 2;
+	/** top edge down */
+	public static final int TILT_FORWARD = 3;
+	/** top edge up */
+	public static final int TILT_BACK = 4;
+
+	/**
+	 * Gesture callbacks, override the ones of interest. Called on the thread
+	 * of the Handler passed to start().
+	 */
+	public static abstract class Listener {
+		/**
+		 * @param strength
+		 *            RMS acceleration without gravity, in m/s^2
+		 */
+		public void onShake(float strength, long timeMillis) {
+		}
+
+		/**
+		 * @param direction
+		 *            one of the TILT_ constants, TILT_NONE when the device is
+		 *            level again
+		 * @param pitch
+		 *            degrees, positive with the top edge up
+		 * @param roll
+		 *            degrees, positive with the left edge down
+		 */
+		public void onTilt(int direction, float pitch, float roll, long timeMillis) {
+		}
+
+		/**
+		 * @param azimuth
+		 *            degrees clockwise from magnetic north, 0 to 360
+		 */
+		public void onHeadingChanged(float azimuth, long timeMillis) {
+		}
+	}
+
+	static final int SAMPLING_PERIOD_US = 20000;
+	// together under the 100 ms a gesture may take to be reported
+	static final int MAX_REPORT_LATENCY_MS = 50;
+	static final int EVALUATE_INTERVAL_MS = 40;
+	static final int SHAKE_WINDOW = 16;
+
+	private static final int RING_SIZE = 64;
+	private static final int RING_MASK = RING_SIZE - 1;
+	private static final int MAGNETIC_AVERAGE = 4;
+	private static final float GRAVITY_RESPONSE = 0.1f;
+	private static final float DEFAULT_SHAKE_THRESHOLD = 4.0f;
+	private static final long DEFAULT_SHAKE_REFRACTORY_MS = 500;
+	private static final float DEFAULT_TILT_DEGREES = 30f;
+	private static final float TILT_HYSTERESIS_DEGREES = 10f;
+	private static final float DEFAULT_HEADING_STEP_DEGREES = 15f;
+
+	private final SensorManager mSensorManager;
+	private final Sensor mAccelerometer;
+	private final Sensor mMagnetometer;
+	private final Listener mListener;
+	private ActionEventBus mEventBus;
+
+	private float mShakeThreshold = DEFAULT_SHAKE_THRESHOLD;
+	private long mShakeRefractoryMs = DEFAULT_SHAKE_REFRACTORY_MS;
+	private float mTiltDegrees = DEFAULT_TILT_DEGREES;
+	private float mHeadingStepDegrees = DEFAULT_HEADING_STEP_DEGREES;
+
+	// raw samples, index = sample number & RING_MASK
+	private final float[] mAccelX = new float[RING_SIZE];
+	private final float[] mAccelY = new float[RING_SIZE];
+	private final float[] mAccelZ = new float[RING_SIZE];
+	private long mAccelWritten;
+	private long mAccelProcessed;
+	private final float[] mMagX = new float[RING_SIZE];
+	private final float[] mMagY = new float[RING_SIZE];
+	private final float[] mMagZ = new float[RING_SIZE];
+	private long mMagWritten;
+
+	// derived state
+	private final float[] mGravity = new float[3];
+	private boolean mGravityPrimed;
+	private final float[] mEnergy = new float[SHAKE_WINDOW];
+	private float mEnergySum;
+	private int mEnergyCount;
+	private long mLastEvaluateNanos;
+	private long mLastShakeNanos;
+	private boolean mShaken;
+	private int mTilt = TILT_NONE;
+	private float mHeading = Float.NaN;
+	private final float[] mGeomagnetic = new float[3];
+	private final float[] mRotation = new float[9];
+	private final float[] mOrientation = new float[3];
+
+	public SensorFusionDetection(Context context, Listener listener) {
+		mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+		mAccelerometer = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+		mMagnetometer = mSensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
+		mListener = listener;
+	}
+
+	/**
+	 * Start receiving samples.
+	 *
+	 * @param handler
+	 *            thread to receive samples and report gestures on, null for
+	 *            the main thread
+	 * @return false if the device has no accelerometer
+	 */
+	public boolean start(Handler handler) {
+		if (mAccelerometer == null) {
+			Log.e(TAG, "no accelerometer");
+			return false;
+		}
+		mAccelWritten = mAccelProcessed = mMagWritten = 0;
+		mGravityPrimed = false;
+		mEnergySum = 0;
+		mEnergyCount = 0;
+		mTilt = TILT_NONE;
+		mHeading = Float.NaN;
+		register(mAccelerometer, handler);
+		if (mMagnetometer != null) {
+			register(mMagnetometer, handler);
+		}
+		return true;
+	}
+
+	public void stop() {
+		mSensorManager.unregisterListener(this);
+	}
+
+	private void register(Sensor sensor, Handler handler) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			mSensorManager.registerListener(this, sensor, SAMPLING_PERIOD_US, MAX_REPORT_LATENCY_MS * 1000, handler);
+		} else {
+			mSensorManager.registerListener(this, sensor, SAMPLING_PERIOD_US, handler);
+		}
+	}
+
+	/**
+	 * Also publish gestures on bus as ActionEvent.TYPE_SHAKE, TYPE_TILT and
+	 * TYPE_HEADING, null to stop.
+	 */
+	public void setEventBus(ActionEventBus bus) {
+		mEventBus = bus;
+	}
+
+	/**
+	 * @param threshold
+	 *            RMS acceleration without gravity that counts as a shake, in
+	 *            m/s^2
+	 * @param refractoryMs
+	 *            minimum time between two shakes
+	 */
+	public void setShakeThreshold(float threshold, long refractoryMs) {
+		mShakeThreshold = threshold;
+		mShakeRefractoryMs = refractoryMs;
+	}
+
+	/**
+	 * @param degrees
+	 *            pitch or roll that counts as a tilt
+	 */
+	public void setTiltThreshold(float degrees) {
+		mTiltDegrees = degrees;
+	}
+
+	/**
+	 * @param degrees
+	 *            how far the heading has to turn before it is reported again
+	 */
+	public void setHeadingStep(float degrees) {
+		mHeadingStepDegrees = degrees;
+	}
+
+	@Override
+	public void onSensorChanged(SensorEvent event) {
+		float[] values = event.values;
+		if (event.sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
+			int i = (int) (mAccelWritten++ & RING_MASK);
+			mAccelX[i] = values[0];
+			mAccelY[i] = values[1];
+			mAccelZ[i] = values[2];
+		} else {
+			int i = (int) (mMagWritten++ & RING_MASK);
+			mMagX[i] = values[0];
+			mMagY[i] = values[1];
+			mMagZ[i] = values[2];
+		}
+		if (event.timestamp - mLastEvaluateNanos >= EVALUATE_INTERVAL_MS * 1000000L) {
+			mLastEvaluateNanos = event.timestamp;
+			evaluate(event.timestamp);
+		}
+	}
+
+	@Override
+	public void onAccuracyChanged(Sensor sensor, int accuracy) {
+	}
+
+	private void evaluate(long nowNanos) {
+		if (mAccelWritten - mAccelProcessed > RING_SIZE) {
+			// fell behind by more than the ring holds
+			mAccelProcessed = mAccelWritten - RING_SIZE;
+		}
+		if (mAccelProcessed == mAccelWritten) {
+			return;
+		}
+		for (; mAccelProcessed < mAccelWritten; mAccelProcessed++) {
+			int i = (int) (mAccelProcessed & RING_MASK);
+			if (!mGravityPrimed) {
+				mGravity[0] = mAccelX[i];
+				mGravity[1] = mAccelY[i];
+				mGravity[2] = mAccelZ[i];
+				mGravityPrimed = true;
+			}
+			mGravity[0] += GRAVITY_RESPONSE * (mAccelX[i] - mGravity[0]);
+			mGravity[1] += GRAVITY_RESPONSE * (mAccelY[i] - mGravity[1]);
+			mGravity[2] += GRAVITY_RESPONSE * (mAccelZ[i] - mGravity[2]);
+			float x = mAccelX[i] - mGravity[0];
+			float y = mAccelY[i] - mGravity[1];
+			float z = mAccelZ[i] - mGravity[2];
+			float energy = x * x + y * y + z * z;
+			int e = (int) (mAccelProcessed % SHAKE_WINDOW);
+			mEnergySum += energy - mEnergy[e];
+			mEnergy[e] = energy;
+			if (mEnergyCount < SHAKE_WINDOW) {
+				mEnergyCount++;
+			}
+		}
+		long timeMillis = System.currentTimeMillis();
+		evaluateShake(nowNanos, timeMillis);
+		evaluateTilt(timeMillis);
+		evaluateHeading(timeMillis);
+	}
+
+	private void evaluateShake(long nowNanos, long timeMillis) {
+		float meanEnergy = mEnergySum / mEnergyCount;
+		if (meanEnergy <= mShakeThreshold * mShakeThreshold) {
+			return;
+		}
+		if (mShaken && nowNanos - mLastShakeNanos < mShakeRefractoryMs * 1000000L) {
+			return;
+		}
+		mShaken = true;
+		mLastShakeNanos = nowNanos;
+		float strength = (float) Math.sqrt(meanEnergy);
+		mListener.onShake(strength, timeMillis);
+		if (mEventBus != null) {
+			mEventBus.publish(ActionEvent.TYPE_SHAKE, timeMillis, strength, 0, null);
+		}
+	}
+
+	private void evaluateTilt(long timeMillis) {
+		float roll = (float) Math.toDegrees(Math.atan2(mGravity[0], mGravity[2]));
+		float pitch = (float) Math.toDegrees(Math.atan2(mGravity[1], mGravity[2]));
+		int tilt;
+		if (Math.abs(roll) >= mTiltDegrees || Math.abs(pitch) >= mTiltDegrees) {
+			if (Math.abs(roll) >= Math.abs(pitch)) {
+				tilt = roll > 0 ? TILT_LEFT : TILT_RIGHT;
+			} else {
+				tilt = pitch > 0 ? TILT_BACK : TILT_FORWARD;
+			}
+		} else if (Math.abs(roll) < mTiltDegrees - TILT_HYSTERESIS_DEGREES
+				&& Math.abs(pitch) < mTiltDegrees - TILT_HYSTERESIS_DEGREES) {
+			tilt = TILT_NONE;
+		} else {
+			// between the thresholds, keep the current state
+			return;
+		}
+		if (tilt == mTilt) {
+			return;
+		}
+		mTilt = tilt;
+		mListener.onTilt(tilt, pitch, roll, timeMillis);
+		if (mEventBus != null) {
+			mEventBus.publish(ActionEvent.TYPE_TILT, timeMillis, tilt == TILT_FORWARD || tilt == TILT_BACK ? pitch
+					: roll, tilt, null);
+		}
+	}
+
+	private void evaluateHeading(long timeMillis) {
+		if (mMagWritten == 0) {
+			return;
+		}
+		int count = (int) Math.min(mMagWritten, MAGNETIC_AVERAGE);
+		mGeomagnetic[0] = mGeomagnetic[1] = mGeomagnetic[2] = 0;
+		for (long n = mMagWritten - count; n < mMagWritten; n++) {
+			int i = (int) (n & RING_MASK);
+			mGeomagnetic[0] += mMagX[i] / count;
+			mGeomagnetic[1] += mMagY[i] / count;
+			mGeomagnetic[2] += mMagZ[i] / count;
+		}
+		if (!SensorManager.getRotationMatrix(mRotation, null, mGravity, mGeomagnetic)) {
+			return;
+		}
+		SensorManager.getOrientation(mRotation, mOrientation);
+		float azimuth = (float) Math.toDegrees(mOrientation[0]);
+		if (azimuth < 0) {
+			azimuth += 360;
+		}
+		if (!Float.isNaN(mHeading)) {
+			float turn = Math.abs(azimuth - mHeading);
+			if (Math.min(turn, 360 - turn) < mHeadingStepDegrees) {
+				return;
+			}
+		}
+		mHeading = azimuth;
+		mListener.onHeadingChanged(azimuth, timeMillis);
+		if (mEventBus != null) {
+			mEventBus.publish(ActionEvent.TYPE_HEADING, timeMillis, azimuth, 0, null);
+		}
+	}
+}
@@ -18,13 +18,15 @@ public class ShakeDetection implements SensorEventListener {
 	private final float mThreshold;
 	private static float mResponse = 0.1f;
 
-	private static final String SHAKEN = "SHAKEN";
-	private static final String SHAKE_STRENGTH = "SHAKE_STRENGTH";
+	static final String SHAKEN = "SHAKEN";
+	static final String SHAKE_STRENGTH = "SHAKE_STRENGTH";
 	private static final float SHAKE_THRESHOLD_DEFAULT = 4.0f;
 
 	private int sample;
 
 	private final Context mCtx;
+	private ActionEventBus mEventBus;
+	private boolean mBroadcastEnabled = true;
 
 	public ShakeDetection(Context c) {
 		this(c, SHAKE_THRESHOLD_DEFAULT);
@@ -57,15 +59,36 @@ public class ShakeDetection implements SensorEventListener {
 
 			if (mAccel > mThreshold) {
 				Log.d(TAG, "Shaken: " + mAccel);
-				Intent intent = new Intent();
-				intent.putExtra(SHAKEN, true);
-				intent.setAction(TAG);
-				intent.putExtra(SHAKE_STRENGTH, mAccel);
-				LocalBroadcastManager.getInstance(mCtx).sendBroadcast(intent);
+				if (mEventBus != null) {
+					mEventBus.publish(ActionEvent.TYPE_SHAKE, System.currentTimeMillis(), mAccel, 0, null);
+				}
+				if (mBroadcastEnabled) {
+					Intent intent = new Intent();
+					intent.putExtra(SHAKEN, true);
+					intent.setAction(TAG);
+					intent.putExtra(SHAKE_STRENGTH, mAccel);
+					LocalBroadcastManager.getInstance(mCtx).sendBroadcast(intent);
+				}
 			}
 		}
 	}
 
+	/**
+	 * Also publish shakes on bus as ActionEvent.TYPE_SHAKE, null to stop.
+	 */
+	public void setEventBus(ActionEventBus bus) {
+		mEventBus = bus;
+	}
+
+	/**
+	 * @param enabled
+	 *            false to stop the local broadcasts, e.g. when only the event
+	 *            bus is used
+	 */
+	public void setBroadcastEnabled(boolean enabled) {
+		mBroadcastEnabled = enabled;
+	}
+
 	@Override
 	public void onAccuracyChanged(Sensor sensor, int accuracy) {
 	}
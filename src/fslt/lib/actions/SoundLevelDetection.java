@@ -8,11 +8,9 @@ package fslt.lib.actions;
 import java.io.IOException;
 
 import android.content.Context;
-import android.content.Intent;
 import android.media.MediaRecorder;
 import android.os.AsyncTask;
 import android.os.Handler;
-import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
 /**
@@ -59,6 +57,11 @@ import android.util.Log;
  * 
  * }
  * </pre>
+ * <p>
+ * Sound events can also be received without Intents by adding a
+ * SoundLevelListener, it is called on the detection thread. The broadcast is
+ * itself a BroadcastSoundLevelListener, registered by default and removable
+ * with {@link #setBroadcastEnabled(boolean)}.
  */
 public class SoundLevelDetection {
 	private static final String TAG = SoundLevelDetection.class.getSimpleName();
@@ -70,12 +73,17 @@ public class SoundLevelDetection {
 	//string that is used for local broadcasting, set IntentFilter to this filter for this name. 
 	private final String mActionName;
 
-	private final int mAmbientSamples;
 	private final int mPollInterval;
-	private final Double mSoundThreshold;
-	private final Double mResponse;
+	// trigger settings, each SoundLevelTask has its own trigger built from them
+	private final int mAmbientSamples;
+	private final double mResponse;
+	private final double mThreshold;
+	private long mRefractoryMillis;
+	private double mHysteresis;
+	private final SoundLevelListeners mListeners = new SoundLevelListeners();
+	private final BroadcastSoundLevelListener mBroadcastListener;
 
-	private static String DEFAULT_ACTION_NAME = "fslt.lib.action.soundleveldetection";
+	static final String DEFAULT_ACTION_NAME = "fslt.lib.action.soundleveldetection";
 
 	// set true when audio is playing so that soundlevel ignores it
 	public static boolean AUDIO_PLAYING = false;
@@ -114,13 +122,58 @@ public class SoundLevelDetection {
 	public SoundLevelDetection(Context context, String actionName, int ambientSamples, int pollInterval, Double response,
 			Double soundLevelThreshold) {
 		mCtx = context;
-		mSoundLevelTask = new SoundLevelTask();
 
 		mActionName = actionName;
-		mAmbientSamples = ambientSamples;
 		mPollInterval = pollInterval;
+		mAmbientSamples = ambientSamples;
 		mResponse = response;
-		mSoundThreshold = soundLevelThreshold;
+		mThreshold = soundLevelThreshold;
+		mSoundLevelTask = new SoundLevelTask();
+		mBroadcastListener = new BroadcastSoundLevelListener(context, actionName);
+		mListeners.add(mBroadcastListener);
+	}
+
+	/**
+	 * @param refractoryMillis
+	 *            minimum time between two sound events, 0 by default
+	 */
+	public void setRefractoryPeriod(long refractoryMillis) {
+		mRefractoryMillis = refractoryMillis;
+		mSoundLevelTask.mTrigger.setRefractoryPeriod(refractoryMillis);
+	}
+
+	/**
+	 * @param hysteresis
+	 *            how far below the threshold the level has to drop before
+	 *            the next sound event, 0 by default
+	 */
+	public void setHysteresis(double hysteresis) {
+		mHysteresis = hysteresis;
+		mSoundLevelTask.mTrigger.setHysteresis(hysteresis);
+	}
+
+	/**
+	 * Receive sound events directly, on the detection thread.
+	 */
+	public void addSoundLevelListener(SoundLevelListener listener) {
+		mListeners.add(listener);
+	}
+
+	public void removeSoundLevelListener(SoundLevelListener listener) {
+		mListeners.remove(listener);
+	}
+
+	/**
+	 * @param enabled
+	 *            false to stop broadcasting sound events, e.g. when only
+	 *            listeners are used
+	 */
+	public void setBroadcastEnabled(boolean enabled) {
+		if (enabled) {
+			mListeners.add(mBroadcastListener);
+		} else {
+			mListeners.remove(mBroadcastListener);
+		}
 	}
 
 	/**
@@ -220,7 +273,8 @@ public class SoundLevelDetection {
 	 * resume.
 	 */
 	public void stopSoundLevelDetection() {
-		mSoundLevelTask.cancel(false);
+		// interrupted so it does not sleep through a restart
+		mSoundLevelTask.cancel(true);
 		closeMicrophone();
 	}
 
@@ -249,8 +303,10 @@ public class SoundLevelDetection {
 	 * determine if a sound action should take place. Sound actions only happen
 	 * if not a noisy environment.
 	 * <p>
-	 * If sound detected over threshold a sound action is broadcast using a
-	 * LocalBroadcastManager.
+	 * If sound detected over threshold it is dispatched to the listeners, by
+	 * default a LocalBroadcastManager broadcast. The loop only uses primitives
+	 * so polling does not allocate. Each task has its own trigger, a task that
+	 * has not seen its cancellation yet never shares state with its successor.
 	 * <p>
 	 * Important that {@link stopSoundLevelDetection} or
 	 * {@link destroySoundLevelDetection} called so that this thread is stopped.
@@ -258,45 +314,34 @@ public class SoundLevelDetection {
 	 * @see CheckAmbientNoiseTask
 	 */
 	private class SoundLevelTask extends AsyncTask<Void, Void, Boolean> {
+		private final EwmaSoundTrigger mTrigger;
+
+		SoundLevelTask() {
+			mTrigger = new EwmaSoundTrigger(mAmbientSamples, mResponse, mThreshold);
+			mTrigger.setRefractoryPeriod(mRefractoryMillis);
+			mTrigger.setHysteresis(mHysteresis);
+		}
 
 		@Override
 		protected Boolean doInBackground(Void... params) {
-
-			Double ewma = getAmplitude();
-
-			int samples = 0;
 			while (true) {
 				if (this.isCancelled()) {
 					return false;
 				}
-				// Keep an EWMA
-				Double dec = getAmplitude();
-				ewma = mResponse * dec + (1 - mResponse) * ewma;
-
-				if (samples < mAmbientSamples) {
-					samples++;
-				}
-
-				Double diff = dec - ewma;
-
-				if (samples >= mAmbientSamples && (dec - ewma > mSoundThreshold) && !AUDIO_PLAYING) {
-					// Log.d(TAG, "I hear a scream! " + (dec - ewma) + " " + dec);
-					diff = diff;
-					Intent intent = new Intent();
-					intent.putExtra("SOUND_DETECTED", true);
-					intent.setAction(mActionName);
-					intent.putExtra("DECIBLES", dec);
-					// istantiator must setup a BroadcastReceiver to list for 
-					// message (mActionName)
-					LocalBroadcastManager.getInstance(mCtx).sendBroadcast(intent);
-					// resample ambient sound 
-					samples = 0;
+				double dec = getAmplitude();
+				long now = System.currentTimeMillis();
+				// our own audio must not move the ambient level, refractory
+				// period or hysteresis state of the trigger
+				if (!AUDIO_PLAYING && mTrigger.onLevel(dec, now)) {
+					// Log.d(TAG, "I hear a scream! " + mTrigger.getLastDifference() + " " + dec);
+					mListeners.dispatch(dec, now);
 				}
 
 				try {
 					Thread.sleep(mPollInterval);
 				} catch (InterruptedException e) {
-					e.printStackTrace();
+					// stopSoundLevelDetection
+					return false;
 				}
 			}
 		}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2013 StoryScape Project. All rights reserved.
+ *  
+ * 
+ */
+package fslt.lib.actions;
+
+/**
+ * Publishes sound events of SoundLevelDetection or PcmSoundLevelDetection on
+ * an ActionEventBus as TYPE_SOUND.
+ *
+ * <pre>
+ * {@code
+ * detection.addSoundLevelListener(new SoundLevelEventPublisher(ActionEventBus.getDefault()));
+ * detection.setBroadcastEnabled(false);
+ * }
+ * </pre>
+ */
+public class SoundLevelEventPublisher implements BandSoundListener {
+	private final ActionEventBus mBus;
+
+	public SoundLevelEventPublisher(ActionEventBus bus) {
+		mBus = bus;
+	}
+
+	@Override
+	public void onSoundDetected(double level, long timeMillis) {
+		mBus.publish(ActionEvent.TYPE_SOUND, timeMillis, level, -1, null);
+	}
+
+	@Override
+	public void onBandSoundDetected(int band, double level, long timeMillis) {
+		mBus.publish(ActionEvent.TYPE_SOUND, timeMillis, level, band, null);
+	}
+}
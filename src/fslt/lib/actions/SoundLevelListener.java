@@ -0,0 +1,27 @@
+/*
+ * Copyright 2013 StoryScape Project. All rights reserved.
+ *  
+ * 
+ */
+package fslt.lib.actions;
+
+/**
+ * Receives sound events directly from SoundLevelDetection or
+ * PcmSoundLevelDetection, without going through an Intent.
+ * <p>
+ * onSoundDetected() is called on the detection thread, implementations should
+ * return quickly and post to a Handler for anything that touches views.
+ * 
+ * @see BroadcastSoundLevelListener
+ */
+public interface SoundLevelListener {
+
+	/**
+	 * @param level
+	 *            level that triggered the event, amplitude for
+	 *            SoundLevelDetection and dBFS for PcmSoundLevelDetection
+	 * @param timeMillis
+	 *            time the level was measured
+	 */
+	void onSoundDetected(double level, long timeMillis);
+}
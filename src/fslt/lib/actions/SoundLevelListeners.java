@@ -0,0 +1,64 @@
+/*
+ * Copyright 2013 StoryScape Project. All rights reserved.
+ *  
+ * 
+ */
+package fslt.lib.actions;
+
+import java.util.Arrays;
+
+/**
+ * Copy on write listener list shared by the sound detectors. Adding and
+ * removing happens rarely on the main thread, dispatching walks a plain array
+ * on the detection thread without locking or allocating.
+ */
+class SoundLevelListeners {
+	private static final SoundLevelListener[] EMPTY = new SoundLevelListener[0];
+
+	private volatile SoundLevelListener[] mListeners = EMPTY;
+
+	synchronized void add(SoundLevelListener listener) {
+		if (listener == null) {
+			throw new IllegalArgumentException("listener must not be null");
+		}
+		for (SoundLevelListener l : mListeners) {
+			if (l == listener) {
+				return;
+			}
+		}
+		SoundLevelListener[] listeners = Arrays.copyOf(mListeners, mListeners.length + 1);
+		listeners[listeners.length - 1] = listener;
+		mListeners = listeners;
+	}
+
+	synchronized void remove(SoundLevelListener listener) {
+		SoundLevelListener[] listeners = mListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			if (listeners[i] == listener) {
+				SoundLevelListener[] copy = new SoundLevelListener[listeners.length - 1];
+				System.arraycopy(listeners, 0, copy, 0, i);
+				System.arraycopy(listeners, i + 1, copy, i, copy.length - i);
+				mListeners = copy;
+				return;
+			}
+		}
+	}
+
+	void dispatch(double level, long timeMillis) {
+		SoundLevelListener[] listeners = mListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			listeners[i].onSoundDetected(level, timeMillis);
+		}
+	}
+
+	void dispatchBand(int band, double level, long timeMillis) {
+		SoundLevelListener[] listeners = mListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			if (listeners[i] instanceof BandSoundListener) {
+				((BandSoundListener) listeners[i]).onBandSoundDetected(band, level, timeMillis);
+			} else {
+				listeners[i].onSoundDetected(level, timeMillis);
+			}
+		}
+	}
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2013 StoryScape Project. All rights reserved.
+ *  
+ * 
+ */
+package fslt.lib.actions;
+
+/**
+ * Decides from a stream of sound levels when a sound event happens. Fed one
+ * level per frame or poll, implementations must not allocate and must not
+ * depend on Android so they can be driven from recorded audio on a plain JVM.
+ * 
+ * @see EwmaSoundTrigger
+ * @see PcmSoundLevelDetection#setSoundTrigger(SoundTrigger)
+ */
+public interface SoundTrigger {
+
+	/**
+	 * @param level
+	 *            level of the latest frame, in whatever unit the detector
+	 *            feeds (dBFS for PcmSoundLevelDetection)
+	 * @param timeMillis
+	 *            time of the frame, only differences between calls matter
+	 * @return true if this frame is a sound event
+	 */
+	boolean onLevel(double level, long timeMillis);
+
+	/**
+	 * Forget everything learned so far, e.g. the ambient level.
+	 */
+	void reset();
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2013 StoryScape Project. All rights reserved.
+ *  
+ * 
+ */
+package fslt.lib.actions;
+
+import java.util.Arrays;
+
+/**
+ * Optional spectral stage for PcmSoundLevelDetection. Each frame is Hann
+ * windowed, transformed with a preallocated Fft and reduced to the energy of
+ * a few frequency bands, each band with its own SoundTrigger. A clap is broad
+ * and short, speech sits around 300-3000 Hz and music hums low, so triggering
+ * on the right band rejects sounds that only the overall level cannot.
+ * <p>
+ * Band levels are in dBFS like PcmLevelMeter RMS levels, i.e. the RMS
+ * amplitude of the signal within the band. Bands are added before the stage
+ * is handed to a detector, process() runs on the recording thread and does
+ * not allocate.
+ * <p>
+ * The work per frame is fixed by the FFT size, independent of the audio.
+ * getFrameBudgetNanos() is the real time one frame covers, the stage keeps
+ * the latest and worst processing times and counts frames that took longer,
+ * so the budget can be checked on the device itself.
+ *
+ * <pre>
+ * {@code
+ * SpectralSoundStage stage = new SpectralSoundStage(1024, 44100);
+ * int claps = stage.addBand(2000, 8000, new EwmaSoundTrigger(40, 0.05, 15.0));
+ * detection.setSpectralStage(stage);
+ * }
+ * </pre>
+ */
+public class SpectralSoundStage {
+	private final int mSampleRate;
+	private final Fft mFft;
+	private final double[] mWindow;
+	private final double[] mRe;
+	private final double[] mIm;
+	// turns a one sided sum of |X|^2 into mean square amplitude
+	private final double mPowerScale;
+
+	private int mBandCount;
+	private int[] mFirstBin = new int[0];
+	private int[] mEndBin = new int[0];
+	private SoundTrigger[] mTriggers = new SoundTrigger[0];
+	private double[] mLevels = new double[0];
+
+	private long mFrameCount;
+	private long mLastFrameNanos;
+	private long mMaxFrameNanos;
+	private long mOverBudgetCount;
+
+	/**
+	 * @param fftSize
+	 *            points per transform, a power of 2, normally the detector's
+	 *            frame size. Shorter frames are zero padded, longer ones
+	 *            truncated.
+	 * @param sampleRate
+	 *            sample rate of the frames in Hz
+	 */
+	public SpectralSoundStage(int fftSize, int sampleRate) {
+		mSampleRate = sampleRate;
+		mFft = new Fft(fftSize);
+		mWindow = new double[fftSize];
+		double sumOfSquares = 0;
+		for (int i = 0; i < fftSize; i++) {
+			mWindow[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / (fftSize - 1));
+			sumOfSquares += mWindow[i] * mWindow[i];
+		}
+		mPowerScale = 2.0 / (fftSize * sumOfSquares);
+		mRe = new double[fftSize];
+		mIm = new double[fftSize];
+	}
+
+	/**
+	 * Add a band, must not be called while a detector is using the stage.
+	 *
+	 * @param lowHz
+	 *            lower band edge, inclusive
+	 * @param highHz
+	 *            upper band edge, exclusive, at most half the sample rate
+	 * @param trigger
+	 *            fed this band's level every frame
+	 * @return index of the band, passed to band listeners
+	 */
+	public int addBand(double lowHz, double highHz, SoundTrigger trigger) {
+		int size = mFft.getSize();
+		int first = Math.max(1, (int) Math.ceil(lowHz * size / mSampleRate));
+		int end = Math.min(size / 2, (int) Math.ceil(highHz * size / mSampleRate));
+		if (end <= first) {
+			throw new IllegalArgumentException("band " + lowHz + "-" + highHz + " Hz contains no FFT bins");
+		}
+		int band = mBandCount++;
+		mFirstBin = Arrays.copyOf(mFirstBin, mBandCount);
+		mEndBin = Arrays.copyOf(mEndBin, mBandCount);
+		mTriggers = Arrays.copyOf(mTriggers, mBandCount);
+		mLevels = Arrays.copyOf(mLevels, mBandCount);
+		mFirstBin[band] = first;
+		mEndBin[band] = end;
+		mTriggers[band] = trigger;
+		mLevels[band] = PcmLevelMeter.SILENCE_DB;
+		return band;
+	}
+
+	/**
+	 * Analyse samples [offset, offset + length) of frame and feed every band
+	 * trigger.
+	 *
+	 * @return index of the first band that triggered, or -1
+	 */
+	public int process(short[] frame, int offset, int length, long timeMillis) {
+		long start = System.nanoTime();
+		int size = mFft.getSize();
+		int n = Math.min(length, size);
+		for (int i = 0; i < n; i++) {
+			mRe[i] = frame[offset + i] * mWindow[i];
+		}
+		Arrays.fill(mRe, n, size, 0);
+		Arrays.fill(mIm, 0);
+		mFft.transform(mRe, mIm);
+
+		int triggered = -1;
+		for (int band = 0; band < mBandCount; band++) {
+			double sum = 0;
+			for (int k = mFirstBin[band]; k < mEndBin[band]; k++) {
+				sum += mRe[k] * mRe[k] + mIm[k] * mIm[k];
+			}
+			double level = PcmLevelMeter.toDb(Math.sqrt(sum * mPowerScale));
+			mLevels[band] = level;
+			if (mTriggers[band].onLevel(level, timeMillis) && triggered == -1) {
+				triggered = band;
+			}
+		}
+
+		long elapsed = System.nanoTime() - start;
+		mFrameCount++;
+		mLastFrameNanos = elapsed;
+		if (elapsed > mMaxFrameNanos) {
+			mMaxFrameNanos = elapsed;
+		}
+		if (elapsed > getFrameBudgetNanos()) {
+			mOverBudgetCount++;
+		}
+		return triggered;
+	}
+
+	/**
+	 * Reset every band trigger.
+	 */
+	public void reset() {
+		for (int band = 0; band < mBandCount; band++) {
+			mTriggers[band].reset();
+			mLevels[band] = PcmLevelMeter.SILENCE_DB;
+		}
+	}
+
+	public int getBandCount() {
+		return mBandCount;
+	}
+
+	/** @return level of band in the latest frame, in dBFS */
+	public double getBandLevelDb(int band) {
+		return mLevels[band];
+	}
+
+	/** @return real time covered by one FFT frame */
+	public long getFrameBudgetNanos() {
+		return mFft.getSize() * 1000000000L / mSampleRate;
+	}
+
+	public long getFrameCount() {
+		return mFrameCount;
+	}
+
+	public long getLastFrameNanos() {
+		return mLastFrameNanos;
+	}
+
+	public long getMaxFrameNanos() {
+		return mMaxFrameNanos;
+	}
+
+	/** @return number of frames that took longer to process than they last */
+	public long getOverBudgetCount() {
+		return mOverBudgetCount;
+	}
+}
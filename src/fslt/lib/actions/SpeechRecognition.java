@@ -66,6 +66,8 @@ public class SpeechRecognition {
 	private Boolean mStarted = false; 
 	private Boolean mSpeechRecInitialized = false; 
 	private String mActionName = "fslt.lib.actions.speechrecognition";
+	private ActionEventBus mEventBus; 
+	private boolean mBroadcastEnabled = true; 
 	public static final String RESULTS = "fslt.lib.actions.speechrecognition.results";
 	public static final String CONFIDENCE = "fslt.lib.actions.speechrecognition.confidence"; 
 	
@@ -108,6 +110,21 @@ public class SpeechRecognition {
 	public void setActionName(String actionName){
 		mActionName = actionName;
 	}
+	/*
+	 * Also publish results on bus as ActionEvent.TYPE_SPEECH, with the 
+	 * recognizer's results Bundle as payload. null to stop. 
+	 */
+	public void setEventBus(ActionEventBus bus){
+		mEventBus = bus; 
+	}
+	/*
+	 * @param enabled 
+	 * 				false to stop the local broadcasts, e.g. when only the 
+	 * 				event bus is used
+	 */
+	public void setBroadcastEnabled(boolean enabled){
+		mBroadcastEnabled = enabled; 
+	}
 	/*
 	 * @return action name as string.
 	 */
@@ -207,15 +224,20 @@ public class SpeechRecognition {
 		public void onResults(Bundle results) {
 
 			Log.d("Speech", "onResults");
-			ArrayList<String> strlist = results
-					.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION);
-			float[] confidence = results
-					.getFloatArray(SpeechRecognizer.CONFIDENCE_SCORES);
-			Intent intent = new Intent();
-			intent.putExtra(RESULTS, strlist);
-			intent.putExtra(CONFIDENCE, confidence);
-			intent.setAction(mActionName);
-			LocalBroadcastManager.getInstance(mCtx).sendBroadcast(intent);
+			if (mEventBus != null) {
+				mEventBus.publish(ActionEvent.TYPE_SPEECH, System.currentTimeMillis(), 0, 0, results);
+			}
+			if (mBroadcastEnabled) {
+				ArrayList<String> strlist = results
+						.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION);
+				float[] confidence = results
+						.getFloatArray(SpeechRecognizer.CONFIDENCE_SCORES);
+				Intent intent = new Intent();
+				intent.putExtra(RESULTS, strlist);
+				intent.putExtra(CONFIDENCE, confidence);
+				intent.setAction(mActionName);
+				LocalBroadcastManager.getInstance(mCtx).sendBroadcast(intent);
+			}
 			/*
 			for (int i = 0; i < strlist.size(); i++) {
 				tmp = (String) strlist.get(i);
@@ -0,0 +1,24 @@
+package fslt.lib.animation;
+
+import android.view.View;
+
+/*
+ * Told by AnimationManager when an animation ends, on the main thread, without the 
+ * Intent of the completion broadcast. 
+ */
+public interface AnimationCompletionListener {
+
+    /**
+     * @param view 
+     * 				view that was animated 
+     * @param animationCode 
+     * 				code the animation was started with, NO_ANIMATION for animations 
+     * 				started by calling an action method directly 
+     * @param durationMillis 
+     * 				time from start to end, including any start delay, -1 if unknown 
+     * @param cancelled 
+     * 				true if the animation was cancelled and stopped where it was instead 
+     * 				of playing to its end 
+     */
+    void onAnimationCompleted(View view, int animationCode, long durationMillis, boolean cancelled);
+}
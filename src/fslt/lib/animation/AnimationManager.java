@@ -1,8 +1,11 @@
 package fslt.lib.animation;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 
+import org.json.JSONException;
+
 import fslt.lib.views.ImageMediaView;
 
 import android.animation.Animator;
@@ -15,6 +18,7 @@ import android.content.Intent;
 import android.os.Handler;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.View;
 import android.view.animation.AccelerateInterpolator;
 import android.view.animation.DecelerateInterpolator;
@@ -88,16 +92,61 @@ public class AnimationManager {
     private static final int SLOW = 2000;
     private static final int REALLY_SLOW = 4000;
 
-    // Animation positions
-    private int initX = 0;
-    private int initY = 0;
-    private float initAlpha = 1f; 
-    private View view;
+    // Built in animations that can be played from compiled templates, see enableBuiltInTemplates()
+    private static final String BUILT_IN_TEMPLATES = "["
+    		+ "{'code':" + SLIDE_RIGHT_AND_RETURN_ACTION + ",'name':'slideRightAndReturn','steps':["
+    		+ "{'property':'x','from':0,'to':1,'unit':'bigHop','relative':true,'repeat':1,'mode':'reverse'}]},"
+    		+ "{'code':" + SLIDE_LEFT_AND_RETURN_ACTION + ",'name':'slideLeftAndReturn','steps':["
+    		+ "{'property':'x','from':0,'to':-1,'unit':'bigHop','relative':true,'repeat':1,'mode':'reverse'}]},"
+    		+ "{'code':" + EXPAND_ACTION + ",'name':'expand','steps':["
+    		+ "{'property':'scaleX','from':1,'to':2,'repeat':1,'mode':'reverse'},"
+    		+ "{'property':'scaleY','from':1,'to':2,'repeat':1,'mode':'reverse'}]},"
+    		+ "{'code':" + SHRINK_ACTION + ",'name':'shrink','steps':["
+    		+ "{'property':'scaleX','from':1,'to':0.5,'repeat':1,'mode':'reverse'},"
+    		+ "{'property':'scaleY','from':1,'to':0.5,'repeat':1,'mode':'reverse'}]},"
+    		+ "{'code':" + VERTICAL_SQUASH_ACTION + ",'name':'verticalSquash','steps':["
+    		+ "{'property':'scaleY','to':0.5,'repeat':1,'mode':'reverse'}]},"
+    		+ "{'code':" + JUMP_ACTION + ",'name':'jump','steps':["
+    		+ "{'property':'y','from':0,'to':-1,'unit':'smallHop','relative':true,'duration':" + QUICK + ",'repeat':1,'mode':'reverse'}]},"
+    		+ "{'code':" + FADE_OUT_ACTION + ",'name':'fadeOut','steps':["
+    		+ "{'property':'alpha','from':1,'to':0.25,'duration':" + QUICK + "}]},"
+    		+ "{'code':" + FADE_IN_ACTION + ",'name':'fadeIn','steps':["
+    		+ "{'property':'alpha','from':0.25,'to':1,'duration':" + QUICK + "}]},"
+    		+ "{'code':" + SPIN_ACTION + ",'name':'spin','steps':["
+    		+ "{'property':'rotation','from':0,'to':360,'duration':" + SLOW + "}]},"
+    		+ "{'code':" + FADE_IN_OUT_ACTION + ",'name':'fadeInOut','steps':["
+    		+ "{'property':'alpha','from':1,'to':0.1,'duration':" + SLOW + ",'repeat':1,'mode':'reverse'}]}"
+    		+ "]";
+
+    // Compiled animations by animation code, played instead of the built in code paths
+    private final SparseArray<AnimationTemplate> mTemplates = new SparseArray<AnimationTemplate>();
+
+    // Plays templates from one frame callback when enabled, null otherwise
+    private BatchAnimationEngine mBatchEngine;
+
+    // Told about every completed animation, copied on write so listeners can remove 
+    // themselves while being told
+    private AnimationCompletionListener[] mCompletionListeners = new AnimationCompletionListener[0];
+    private boolean mCompletionBroadcastEnabled = false;
+
+    // Completion listeners of ended built in animations, reused by the next ones
+    private final ArrayList<Completion> mIdleCompletions = new ArrayList<Completion>();
+    // Code of the animation startAnimation is starting, for the completion of its animators
+    private int mStartingCode = NO_ANIMATION;
+
+    // Policy given to the controller of every view added with addImageObject
+    private int mTriggerPolicy = ViewAnimationController.POLICY_IGNORE;
 
     // For images that react to non-touch events we need to have a list so that the animation
     // manager can listen for such events and animate any images that respond to such actions
     public final LinkedList<ImageMediaView> imageMedias = new LinkedList<ImageMediaView>();
     
+    // Dispatch index: views in imageMedias grouped by their actionOn trigger, so activating
+    // a trigger only visits the views that respond to it. mTriggerIndex[actionOn] holds 
+    // mTriggerCounts[actionOn] views, kept up to date by addImageObject/clearOfObjects.
+    private ImageMediaView[][] mTriggerIndex = new ImageMediaView[ImageMediaView.ACTION_ON_SPEECH + 1][];
+    private int[] mTriggerCounts = new int[ImageMediaView.ACTION_ON_SPEECH + 1];
+    
     // Map of object name to ImageMediaView
     //public final HashMap<String, ImageMediaView> imIndex = new HashMap<String, ImageMediaView>();
     
@@ -129,90 +178,131 @@ public class AnimationManager {
      * @return
      */
     public boolean animateImage(View view, int animationCode, int duration){
-        //Every new animation 
-    	int initX = (int)view.getX(); 
-    	int initY = (int)view.getY(); 
-    	float scaleX = view.getScaleX(); 
-    	float scaleY = view.getScaleY(); 
-    	float initAlpha = view.getAlpha(); 
-        if (getIsAnimated(view)){
+        // An ImageMediaView's controller decides whether the trigger plays now, waits for 
+        // the running animation or is dropped, other views always play
+        ViewAnimationController controller = getController(view);
+        if (controller != null && !controller.onTrigger(animationCode, duration)){
             return false;
+        }
+        if (Log.isLoggable(TAG, Log.DEBUG)){
+            Log.d(TAG, "Animating: " + view.toString());
+        }
+        startAnimation(view, controller, animationCode, duration);
+        return true;
+    }
+
+    /*
+     * Play animationCode on view, controller is null for views that are not ImageMediaViews. 
+     * Start values are those captured by the controller when it entered RUNNING, so every 
+     * view animates from its own position even when several animate at once. 
+     */
+    private void startAnimation(View view, ViewAnimationController controller, 
+    			int animationCode, int duration){
+        int initX; 
+        int initY; 
+        float initAlpha; 
+        float scaleX; 
+        float scaleY; 
+        if (controller != null){
+            initX = (int)controller.getStartX(); 
+            initY = (int)controller.getStartY(); 
+            initAlpha = controller.getStartAlpha(); 
+            scaleX = controller.getStartScaleX(); 
+            scaleY = controller.getStartScaleY(); 
         } else {
-        	Log.d(TAG, "Animating: " + view.toString());
-            setIsAnimated(view, true);
+            initX = (int)view.getX(); 
+            initY = (int)view.getY(); 
+            initAlpha = view.getAlpha(); 
+            scaleX = view.getScaleX(); 
+            scaleY = view.getScaleY(); 
         }
-        this.initX = initX;
-        this.initY = initY;
-        this.view = view;
-        this.initAlpha = initAlpha; 
         final Intent intent;
+        Object running = null;
         
+        AnimationTemplate template = mTemplates.get(animationCode);
+        if (template != null){
+            if (mBatchEngine != null){
+                int group = mBatchEngine.start(template, view, duration, animationCode);
+                if (controller != null){
+                    controller.setRunning(mBatchEngine, group);
+                }
+                return;
+            }
+            running = template.start(view, duration, animationCode);
+            if (controller != null){
+                controller.setRunning(running);
+            }
+            return;
+        }
+        
+        mStartingCode = animationCode;
         switch(animationCode){
             // Possible animations for views
             case AnimationManager.FLIP_HORIZONTAL:
-            	this.flipIt(view, duration);
+            	running = this.flipIt(view, duration);
             	break; 
             case AnimationManager.SLIDE_RIGHT_AND_RETURN_ACTION:		//101 ok
-                this.horizontalSlideAndReturnAction(view, initX, mBigHop, duration);
+                running = this.horizontalSlideAndReturnAction(view, initX, mBigHop, duration);
                 break;
             case AnimationManager.SLIDE_LEFT_AND_RETURN_ACTION:
-            	this.horizontalSlideAndReturnAction(view, initX, (-1*mBigHop), duration );
+            	running = this.horizontalSlideAndReturnAction(view, initX, (-1*mBigHop), duration );
             	break;
             case AnimationManager.EXPAND_ACTION: 		    //102 ok
-                this.expandAction(view, duration); 
+                running = this.expandAction(view, duration); 
                 break; 
             case AnimationManager.SHRINK_ACTION: 		    //103 ok
-                this.shrinkAction(view, duration); 
+                running = this.shrinkAction(view, duration); 
                 break; 
             case AnimationManager.EXPAND_SHRINK_ACTION:	    //104 ok
-                this.expandShrinkAction(view, duration); 
+                running = this.expandShrinkAction(view, duration); 
                 break; 
             case AnimationManager.FADE_ACTION: 		        //105 ok
-                this.fadeAction(view, initAlpha, duration); 
+                running = this.fadeAction(view, initAlpha, duration); 
                 break; 
             case AnimationManager.VERTICAL_SQUASH_ACTION:	    //106 very cute, but doesn't come back...?
-                this.verticalSquishyAction(view, initY, scaleX, scaleY, duration);
+                running = this.verticalSquishyAction(view, initY, scaleX, scaleY, duration);
                 break;
             case AnimationManager.JUMP_ACTION: 		//107 confused
             	//TODO: make mSmallHop parameter from xml for size and direction of jump
             	// negative value means jump up
-                this.jumpAction(view, initY, -1*mSmallHop, duration); 
+                running = this.jumpAction(view, initY, -1*mSmallHop, duration); 
                 break; 
             case AnimationManager.FADE_OUT_ACTION: 	       	    //108 ok, for toolbar icons
-                this.fadeOutAction(view, duration);
+                running = this.fadeOutAction(view, duration);
                 break; 
             case AnimationManager.FADE_IN_ACTION:  				//109 ok, for toolbar icons
-            	this.fadeInAction(view, duration);
+            	running = this.fadeInAction(view, duration);
                 break; 
             case AnimationManager.DRAG_ACTION : 		        //110 Nothing should happen
-                setIsAnimated(view, false);
+                finishWithoutAnimation(view, controller);
                 break;
             case AnimationManager.NFC_APPEAR_DRAG:
             	view.setVisibility(View.VISIBLE);
-            	setIsAnimated(view, false);  	
+            	finishWithoutAnimation(view, controller);  	
             	break;
             case AnimationManager.DRAG_GLIDE_BACK_ACTION: 		//111 This is handled earlier on.
-            	// this is handled in ImageMedia 
+            	// this is handled in ImageMedia, nothing runs until the view is dropped
+                finishWithoutAnimation(view, controller);
                 break; 
             case AnimationManager.SPIN_ACTION:				//112 ok
             	//postive is clockwise, negative counter clockwise
-                this.spinAction(view, 360f, duration);
+                running = this.spinAction(view, 360f, duration);
                 break;
             case AnimationManager.FADE_IN_OUT_ACTION:		//113 ok
-                this.fadeInOutAction(view, duration);
+                running = this.fadeInOutAction(view, duration);
                 break;
             case AnimationManager.HORIZONTAL_SHAKE:			//114 ok
-                this.vibrateAction(view, "x", initX, duration);
+                running = this.vibrateAction(view, "x", initX, duration);
                 break;
             case AnimationManager.VERTICAL_SHAKE:			//115 ok
-                this.vibrateAction(view, "y", initY, duration);
+                running = this.vibrateAction(view, "y", initY, duration);
                 break;
             case AnimationManager.IOIO_PIN_01_OUT_ACTION:			//115 ok
             	intent = new Intent(); 
    			 	intent.putExtra("SET_POWER", true); 
    			 	intent.setAction("edu.mit.media.affect.ioio"); 
    			 	LocalBroadcastManager.getInstance(mCtx).sendBroadcast(intent);
-   			 	setIsAnimated(view, false);
+   			 	finishWithoutAnimation(view, controller);
                 break;
             case AnimationManager.IOIO_PIN_01_OUT_TOGGLE_ACTION:			//115 ok
             	intent = new Intent(); 
@@ -221,20 +311,62 @@ public class AnimationManager {
    			 	LocalBroadcastManager.getInstance(mCtx).sendBroadcast(intent);
    			 	
    			 	final View v = view; 
+   			 	final ViewAnimationController c = controller; 
 	   			Handler handler = new Handler();
 	   			handler.postDelayed(new Runnable() { 
 	   			   @Override
 	   			   public void run() {
 	   			 	LocalBroadcastManager.getInstance(mCtx).sendBroadcast(intent);
-	   			 	setIsAnimated(v, false);
+	   			 	finishWithoutAnimation(v, c);
 	   			   }
 	   			}, 300);
    			 	
                 break;
             default:
+                finishWithoutAnimation(view, controller);
                 break;
         }
-        return true;
+        mStartingCode = NO_ANIMATION;
+        if (controller != null && running != null){
+            controller.setRunning(running);
+        }
+    }
+
+    /*
+     * End of an action that has nothing to animate, no completion is broadcast. 
+     */
+    private void finishWithoutAnimation(View view, ViewAnimationController controller){
+        if (controller != null && controller.onFinished(null, 0)){
+            startAnimation(view, controller, controller.getNextCode(), controller.getNextDuration());
+        }
+    }
+
+    /**
+     * How views added with addImageObject treat triggers that arrive while they animate. 
+     * 
+     * @param policy 
+     * 				ViewAnimationController.POLICY_IGNORE (default), POLICY_COALESCE or 
+     * 				POLICY_QUEUE 
+     */
+    public void setTriggerPolicy(int policy){
+        mTriggerPolicy = policy;
+        for (ImageMediaView im : imageMedias){
+            im.getAnimationController().setTriggerPolicy(policy);
+        }
+    }
+
+    /**
+     * Stop the view's animation and drop its waiting triggers. 
+     */
+    public void cancelAnimation(View view){
+        ViewAnimationController controller = getController(view);
+        if (controller != null){
+            controller.cancel();
+        }
+    }
+
+    private static ViewAnimationController getController(View view){
+        return view instanceof ImageMediaView ? ((ImageMediaView)view).getAnimationController() : null;
     }
 
     //TODO: currently hard codded, think if we even want to keep this. 
@@ -246,25 +378,114 @@ public class AnimationManager {
         mBigHop = (width + height) / 4;
     }
 
+    int getTinyHop(){
+        return mTinyHop;
+    }
+
+    int getSmallHop(){
+        return mSmallHop;
+    }
+
+    int getBigHop(){
+        return mBigHop;
+    }
+
+    /**
+     * Compile animation descriptions, e.g. from story JSON, and play each one for its 
+     * code from now on. See AnimationTemplate for the format. 
+     * 
+     * @param json 
+     * 				array of descriptions, or an object with an "animations" array
+     * @throws JSONException 
+     * 				if a description is malformed, nothing is registered then
+     */
+    public void loadAnimationTemplates(String json) throws JSONException {
+        for (AnimationTemplate template : AnimationTemplate.compileAll(json)){
+            registerAnimationTemplate(template.getCode(), template);
+        }
+    }
+
+    /**
+     * Play template whenever animationCode is triggered, null to go back to the built in 
+     * animation. 
+     */
+    public void registerAnimationTemplate(int animationCode, AnimationTemplate template){
+        if (template == null){
+            mTemplates.remove(animationCode);
+            return;
+        }
+        template.setManager(this);
+        mTemplates.put(animationCode, template);
+    }
+
+    /**
+     * Play the simple built in animations (slides, expand, shrink, squash, jump, fades and 
+     * spin) from reusable templates instead of building new animators on every trigger. 
+     */
+    public void enableBuiltInTemplates(){
+        try {
+            loadAnimationTemplates(BUILT_IN_TEMPLATES);
+        } catch (JSONException e){
+            throw new IllegalStateException("built in animation templates do not compile", e);
+        }
+    }
+
+    /**
+     * Play templates, e.g. the built in ones after enableBuiltInTemplates(), from a single 
+     * frame callback that advances every animating view at once, instead of animators per 
+     * view and property. Worth it on pages with many views reacting to the same trigger. 
+     * Animations without a template still use their own animators. 
+     */
+    public void setBatchEngineEnabled(boolean enabled){
+        if (enabled && mBatchEngine == null){
+            mBatchEngine = new BatchAnimationEngine(this);
+        } else if (!enabled){
+            // animations already in the engine play to their end
+            mBatchEngine = null;
+        }
+    }
+
+    /**
+     * @return the batch engine, for its frame timing, null unless enabled 
+     */
+    public BatchAnimationEngine getBatchEngine(){
+        return mBatchEngine;
+    }
+
+    /**
+     * @return animator instances created by all registered templates, stays constant once 
+     * 				every template has as many instances as animations run at once. Only 
+     * 				counts those instances, not other allocations made per trigger. 
+     */
+    public long getTemplateAllocationCount(){
+        long count = 0;
+        for (int i = 0; i < mTemplates.size(); i++){
+            count += mTemplates.valueAt(i).getAllocationCount();
+        }
+        return count;
+    }
+
     //Animation actions
-    public void bounceBackAction(View v, int start){
+    public Animator bounceBackAction(View v, int start){
         //TODO add repeat value and duration as parameters, error checking 
         ObjectAnimator animation = ObjectAnimator.ofFloat(v, "y", start, start + mBigHop);
         animation.setRepeatMode(ValueAnimator.REVERSE);
         animation.setRepeatCount(ONCE);
         animation.setDuration(SLOW);
-        animation.addListener(animatorListener);
+        animation.addListener(completionFor(v));
         animation.start();
+        return animation;
     }
     
-    public void horizontalSlideAndReturnAction(View v, int start, int slideDistance, int duration){
+    public Animator horizontalSlideAndReturnAction(View v, int start, int slideDistance, int duration){
         //TODO
         ObjectAnimator animation = ObjectAnimator.ofFloat(v, "x", start, start + slideDistance);
         animation.setRepeatMode(ValueAnimator.REVERSE);
         animation.setRepeatCount(ONCE);
         animation.setDuration(duration);
-        animation.addListener(animatorListener);
+        animation.addListener(completionFor(v));
         animation.start();
+        return animation;
     }
 
     // Vars used by flipIt
@@ -273,48 +494,52 @@ public class AnimationManager {
     
     /**
      * Flips the view around the horizontal axis. 
+     * 
+     * @return one set holding both halves, so cancelling it stops the whole flip 
      */
-	public void flipIt(View view, int duration){
+	public Animator flipIt(View view, int duration){
 		ObjectAnimator visToInvis = ObjectAnimator.ofFloat(view, "rotationY", 0f, 90f);
         visToInvis.setDuration(500);
         visToInvis.setInterpolator(accelerator);
-        final ObjectAnimator invisToVis = ObjectAnimator.ofFloat(view, "rotationY",
+        ObjectAnimator invisToVis = ObjectAnimator.ofFloat(view, "rotationY",
                 -90f, 0f);
         invisToVis.setDuration(duration);
         invisToVis.setInterpolator(decelerator);
-        visToInvis.addListener(new AnimatorListenerAdapter() {
-            @Override
-            public void onAnimationEnd(Animator anim) {
-            	invisToVis.addListener(animatorListener);
-                invisToVis.start();
-            }
-        });
-        visToInvis.start();
+        AnimatorSet flip = new AnimatorSet();
+        flip.playSequentially(visToInvis, invisToVis);
+        flip.addListener(completionFor(view));
+        flip.start();
+        return flip;
 	}
 
-    public void expandAction(View v, int duration){
+    public Animator expandAction(View v, int duration){
         AnimatorSet as = new AnimatorSet();
         expand(v, as, duration);
-        as.addListener(animatorListener);
+        as.addListener(completionFor(v));
         as.start();
+        return as;
     }
-    public void shrinkAction(View v, int duration){
+    public Animator shrinkAction(View v, int duration){
         AnimatorSet as = new AnimatorSet();
         shrink(v, as, duration);
-        as.addListener(animatorListener);
+        as.addListener(completionFor(v));
         as.start();
+        return as;
     }
-    public void expandShrinkAction(View v, int duration){
+    public Animator expandShrinkAction(View v, int duration){
         AnimatorSet as = new AnimatorSet();
         expand(v, as, duration);
         AnimatorSet as2 = new AnimatorSet();
-        as2.setStartDelay(REALLY_SLOW);
         shrink(v, as2, duration);
-        as.start();
-        as2.addListener(animatorListener);
-        as2.start();
+        // one set, so cancelling it stops both parts
+        AnimatorSet all = new AnimatorSet();
+        all.play(as);
+        all.play(as2).after(REALLY_SLOW);
+        all.addListener(completionFor(v));
+        all.start();
+        return all;
     }
-    public void fadeAction(View v, float startAlpha, int duration){
+    public Animator fadeAction(View v, float startAlpha, int duration){
     	ObjectAnimator animation; 
     	//0.06 instead of 0.05 because of rounding 
     	if(startAlpha > 0.06f)
@@ -322,12 +547,13 @@ public class AnimationManager {
     	else
     		animation = ObjectAnimator.ofFloat(v, "alpha", startAlpha, 1.0f);
         animation.setDuration(SLOW);
-        animation.addListener(animatorListener);
+        animation.addListener(completionFor(v));
         animation.start();
+        return animation;
     }
 
 
-    public void verticalSquishyAction(View v, int startY, float scaleX, 
+    public Animator verticalSquishyAction(View v, int startY, float scaleX, 
     				float scaleY, int duration){
         int id = v.getId(); 
         Log.i("TAG", Integer.toString(id));
@@ -335,22 +561,22 @@ public class AnimationManager {
         ObjectAnimator shakeAnimation; 
         ObjectAnimator squashAnimation; 
         AnimatorSet animatorSet = new AnimatorSet();
-        animatorSet.addListener(animatorListener); 
         
         squashAnimation =  ObjectAnimator.ofFloat(v, "scaleY", 0.5f);
         squashAnimation.setDuration(duration);
         squashAnimation.setRepeatCount(ONCE);
         squashAnimation.setRepeatMode(ValueAnimator.REVERSE);
         animatorSet.play(squashAnimation);
-        animatorSet.addListener(animatorListener);
+        animatorSet.addListener(completionFor(v));
         animatorSet.start(); 
+        return animatorSet;
     }
 
     /** Intention is to fade while moving.
      * TODO (joyc): ASK_MICAH, what is this?
      *
      */
-    public void jumpAction(View v, int startY, int jumpSize, int duration){
+    public Animator jumpAction(View v, int startY, int jumpSize, int duration){
         int id = v.getId(); 
         Log.i("TAG", Integer.toString(id));
         
@@ -358,39 +584,44 @@ public class AnimationManager {
         animation.setRepeatMode(ValueAnimator.REVERSE);
         animation.setRepeatCount(ONCE);
         animation.setDuration(QUICK);
-        animation.addListener(animatorListener); 
+        animation.addListener(completionFor(v)); 
         animation.start();
+        return animation;
     }
 
-    public void spinAction(View v, float degrees, int duration){
+    public Animator spinAction(View v, float degrees, int duration){
         ObjectAnimator animation = ObjectAnimator.ofFloat(v,  "rotation", 0f, degrees);
         animation.setDuration(SLOW);
-        animation.addListener(animatorListener); 
+        animation.addListener(completionFor(v)); 
         animation.start();
+        return animation;
     }
 
-    public void fadeInOutAction(View v, int duration){
+    public Animator fadeInOutAction(View v, int duration){
         ObjectAnimator animation = ObjectAnimator.ofFloat(v,  "alpha", 1.0f, 0.1f);
         animation.setRepeatMode(ValueAnimator.REVERSE);
         animation.setRepeatCount(ONCE);
         animation.setDuration(SLOW);
-        animation.addListener(animatorListener); 
+        animation.addListener(completionFor(v)); 
         animation.start();
+        return animation;
     }
 
-    public void fadeInAction(View v, int duration){
+    public Animator fadeInAction(View v, int duration){
         ObjectAnimator animation = ObjectAnimator.ofFloat(v,  "alpha", 0.25f, 1.0f);
         animation.setDuration(QUICK);
-        animation.addListener(animatorListener); 
+        animation.addListener(completionFor(v)); 
         animation.start();
+        return animation;
     }
     
 
-    public void fadeOutAction(View v, int duration){
+    public Animator fadeOutAction(View v, int duration){
         ObjectAnimator animation = ObjectAnimator.ofFloat(v,  "alpha", 1.0f, 0.25f);
         animation.setDuration(QUICK);
-        animation.addListener(animatorListener); 
+        animation.addListener(completionFor(v)); 
         animation.start();
+        return animation;
     }
     /**
      * TODO: needs to be tested to see what duration value works best. 
@@ -400,7 +631,7 @@ public class AnimationManager {
      * @param vibrateAction
      * @param duration
      */
-    public void vibrateAction(View v, String direction, int startCoordinate, int duration)
+    public Animator vibrateAction(View v, String direction, int startCoordinate, int duration)
     {
     	//TODO: probably should get rid of mTinyHop. 
     	int speed = 2*mTinyHop; 
@@ -410,27 +641,41 @@ public class AnimationManager {
         shake(v, shake1, direction, startCoordinate, startCoordinate + mTinyHop, duration);
         shake(v, shake2, direction, startCoordinate, startCoordinate - mTinyHop, duration);
         shake(v, shake3, direction, startCoordinate, startCoordinate + mTinyHop, duration);
-        shake2.setStartDelay(duration*2);
-        shake3.setStartDelay(duration*4);
-        shake1.start();
-        shake2.start();
-        
-        shake3.addListener(animatorListener);
-        shake3.start(); 
+        // one set, so cancelling it stops every shake
+        AnimatorSet all = new AnimatorSet();
+        all.play(shake1);
+        all.play(shake2).after(duration*2);
+        all.play(shake3).after(duration*4);
+        all.addListener(completionFor(v));
+        all.start(); 
+        return all;
     }
 
-    public void glide(View v, float initX, float initY, float finalX, 
+    /**
+     * Glide v from one position to another, e.g. back to where a drag started. 
+     * 
+     * @return false if v is an ImageMediaView that is already animating, nothing is 
+     * 				started then 
+     */
+    public boolean glide(View v, float initX, float initY, float finalX, 
     			float finalY, int duration)
     {
+        ViewAnimationController controller = getController(v);
+        if (controller != null && !controller.begin()){
+            return false;
+        }
         ObjectAnimator xComponent = ObjectAnimator.ofFloat(v, "x", initX, finalX);
         ObjectAnimator yComponent = ObjectAnimator.ofFloat(v, "y", initY, finalY);
         xComponent.setDuration(duration);
         yComponent.setDuration(duration);
         AnimatorSet as = new AnimatorSet();
         as.play(xComponent).with(yComponent);
-        setIsAnimated(v, true);
-        as.addListener(animatorListener);
+        if (controller != null){
+            controller.setRunning(as);
+        }
+        as.addListener(completionFor(v));
         as.start();
+        return true;
     }
 
     private void expand(View v, AnimatorSet as, int duration){
@@ -467,59 +712,175 @@ public class AnimationManager {
         as.play(shakeObject);
     }
     
+    /**
+     * @deprecated the view's ViewAnimationController keeps this state, false resets it 
+     * 				and drops waiting triggers 
+     */
+    @Deprecated
     public void setIsAnimated(View view, boolean isAnimated){
-        if(view instanceof ImageMediaView){
-            ImageMediaView im = (ImageMediaView)view;
-            im.isAnimated = isAnimated; 
+        ViewAnimationController controller = getController(view);
+        if (controller == null){
+            return;
+        }
+        if (isAnimated){
+            controller.begin();
+        } else {
+            controller.reset();
         }
     }
 
     public boolean getIsAnimated(View view){
-        boolean rtn = false; 
-        if(view instanceof ImageMediaView){
-            ImageMediaView im = (ImageMediaView)view;
-            rtn = im.isAnimated;
-        }
-        return rtn;
+        ViewAnimationController controller = getController(view);
+        return controller != null && controller.isAnimating();
     }
     
-    public Animator.AnimatorListener animatorListener = new Animator.AnimatorListener() {
+    /**
+     * @deprecated finds the target by searching the animation when it ends and reports 
+     * 				no animation code or duration, the action methods track their targets 
+     * 				themselves 
+     */
+    @Deprecated
+    public Animator.AnimatorListener animatorListener = new AnimatorListenerAdapter() {
+        // an Animator ends straight after it is cancelled, on the same thread
+        private Animator mCancelled;
+
         @Override
-		public void onAnimationStart(Animator animation) {
-            // TODO Auto-generated method stub
+        public void onAnimationCancel(Animator animation) {
+            mCancelled = animation;
+        }
 
+        @Override
+		public void onAnimationEnd(Animator animation) {
+            boolean cancelled = mCancelled == animation;
+            mCancelled = null;
+            Object obj = getTargetObjectFromAnimation(animation);
+            if (obj instanceof View){
+                onAnimationFinished((View)obj, NO_ANIMATION, -1, animation, 0, cancelled);
+            } else {
+                Log.d(TAG, "Problem with animaiton, getTargetObjectFromAnimation returned " + obj); 
+            }
         }
+    };
+
+    /*
+     * Ends one built in animation, knows its view, code and start time from when the 
+     * animation was started so the end needs no search. 
+     */
+    private class Completion extends AnimatorListenerAdapter {
+        private View mView;
+        private int mCode;
+        private long mStartNanos;
+        private boolean mCancelled;
 
         @Override
-		public void onAnimationRepeat(Animator animation) {
-            // TODO Auto-generated method stub
+        public void onAnimationCancel(Animator animation) {
+            mCancelled = true;
+        }
 
-        } 
-        
         @Override
-		public void onAnimationEnd(Animator animation) {
-            Object obj = getTargetObjectFromAnimation(animation); 
-            if(obj instanceof ImageMediaView){
-                ImageMediaView im = (ImageMediaView)obj;
-                setIsAnimated(im,false);
-            }else if(obj == null){
-                Log.d(TAG, "Problem with animaiton, getTargetObjectFromAnimation returned null"); 
-            }
+        public void onAnimationEnd(Animator animation) {
+            animation.removeListener(this);
+            View view = mView;
+            int code = mCode;
+            long startNanos = mStartNanos;
+            boolean cancelled = mCancelled;
+            mView = null;
+            mCancelled = false;
+            mIdleCompletions.add(this);
+            onAnimationFinished(view, code, startNanos, animation, 0, cancelled);
+        }
+    }
+
+    /*
+     * Listener to add to the animator whose end is the end of an animation of view. 
+     */
+    private Animator.AnimatorListener completionFor(View view){
+        int idle = mIdleCompletions.size();
+        Completion completion = idle > 0 ? mIdleCompletions.remove(idle - 1) : new Completion();
+        completion.mView = view;
+        completion.mCode = mStartingCode;
+        completion.mStartNanos = System.nanoTime();
+        return completion;
+    }
+
+    /*
+     * Common end of every animation, built in, template or batch engine. 
+     * 
+     * @param startNanos 
+     * 				System.nanoTime() when the animation started, -1 if unknown 
+     * @param source 
+     * 				the Animator, template instance or batch engine that ended 
+     * @param group 
+     * 				batch engine group, 0 for other sources 
+     * @param cancelled 
+     * 				true if the animation was cancelled rather than played to its end 
+     */
+    void onAnimationFinished(View view, int animationCode, long startNanos, Object source, int group, 
+    			boolean cancelled){
+        long durationMillis = startNanos < 0 ? -1 : (System.nanoTime() - startNanos) / 1000000;
+        ViewAnimationController controller = getController(view);
+        // idle before anyone is told, so listeners can trigger the view again, an end 
+        // that is not the view's running animation leaves it as it is
+        boolean next = controller != null && controller.onFinished(source, group);
+        AnimationCompletionListener[] listeners = mCompletionListeners;
+        for (int i = 0; i < listeners.length; i++){
+            listeners[i].onAnimationCompleted(view, animationCode, durationMillis, cancelled);
+        }
+        if (mCompletionBroadcastEnabled){
             //send message that animation done. 
             Intent intent = new Intent();
-			intent.putExtra(ANIMATION_STATUS, ANIMAITON_COMPLETED);
-			intent.setAction(mActionName);
-			LocalBroadcastManager.getInstance(mCtx).sendBroadcast(intent);
+            intent.putExtra(ANIMATION_STATUS, ANIMAITON_COMPLETED);
+            intent.setAction(mActionName);
+            LocalBroadcastManager.getInstance(mCtx).sendBroadcast(intent);
         }
+        // play the next waiting trigger, if any
+        if (next){
+            startAnimation(view, controller, controller.getNextCode(), controller.getNextDuration());
+        }
+    }
 
-        @Override
-		public void onAnimationCancel(Animator animation) {
-            // TODO Auto-generated method stub
+    /**
+     * Be told about every animation that ends, on the main thread. 
+     */
+    public void addAnimationCompletionListener(AnimationCompletionListener listener){
+        for (AnimationCompletionListener l : mCompletionListeners){
+            if (l == listener){
+                return;
+            }
+        }
+        AnimationCompletionListener[] listeners = Arrays.copyOf(mCompletionListeners, mCompletionListeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+        mCompletionListeners = listeners;
+    }
 
+    public void removeAnimationCompletionListener(AnimationCompletionListener listener){
+        AnimationCompletionListener[] old = mCompletionListeners;
+        for (int i = 0; i < old.length; i++){
+            if (old[i] == listener){
+                AnimationCompletionListener[] listeners = new AnimationCompletionListener[old.length - 1];
+                System.arraycopy(old, 0, listeners, 0, i);
+                System.arraycopy(old, i + 1, listeners, i, old.length - i - 1);
+                mCompletionListeners = listeners;
+                return;
+            }
         }
-    };
+    }
 
+    /**
+     * @param enabled 
+     * 				true to also broadcast ANIMAITON_COMPLETED under getActionName() when 
+     * 				an animation ends, as earlier versions always did. Off by default, it 
+     * 				allocates an Intent per animation. 
+     */
+    public void setCompletionBroadcastEnabled(boolean enabled){
+        mCompletionBroadcastEnabled = enabled;
+    }
+
+    /**
+     * @deprecated completion listeners are told the view directly 
+     */
     //TODO: NEED to make sure only using animation sets and object animators. 
+    @Deprecated
     public Object getTargetObjectFromAnimation(Animator animation){
         ObjectAnimator oba = null; 
         Object obj = null; 
@@ -548,22 +909,75 @@ public class AnimationManager {
     }
     public void clearOfObjects(){
         imageMedias.clear();
+        for (int t = 0; t < mTriggerIndex.length; t++){
+            if (mTriggerIndex[t] != null){
+                Arrays.fill(mTriggerIndex[t], 0, mTriggerCounts[t], null);
+            }
+            mTriggerCounts[t] = 0;
+        }
     }
 
+    /**
+     * Add a view that reacts to non-touch events. The view's actionOn must be set before 
+     * it is added, it is indexed under that trigger. 
+     */
     public void addImageObject(ImageMediaView i ){
         imageMedias.add(i);
+        i.getAnimationController().setTriggerPolicy(mTriggerPolicy);
+        int trigger = i.actionOn;
+        if (trigger < 0){
+            return;
+        }
+        if (trigger >= mTriggerIndex.length){
+            mTriggerIndex = Arrays.copyOf(mTriggerIndex, trigger + 1);
+            mTriggerCounts = Arrays.copyOf(mTriggerCounts, trigger + 1);
+        }
+        ImageMediaView[] views = mTriggerIndex[trigger];
+        int count = mTriggerCounts[trigger];
+        if (views == null){
+            views = new ImageMediaView[4];
+        } else if (count == views.length){
+            views = Arrays.copyOf(views, count * 2);
+        }
+        views[count] = i;
+        mTriggerIndex[trigger] = views;
+        mTriggerCounts[trigger] = count + 1;
     }
 
-    public LinkedList<ImageMediaView> soundActivatedImages() {
-        LinkedList<ImageMediaView> result = new LinkedList<ImageMediaView>();
+    /**
+     * @return number of views added with the given actionOn trigger
+     */
+    public int getTriggeredMediaCount(int actionOn){
+        return actionOn >= 0 && actionOn < mTriggerCounts.length ? mTriggerCounts[actionOn] : 0;
+    }
 
-        for (int i = 0; i < imageMedias.size(); i++){
-            if (imageMedias.get(i).actionOn == ImageMediaView.ACTION_ON_SOUND){
-                result.add(imageMedias.get(i));
-            }
+    /**
+     * Activate every view added with the given actionOn trigger, visits only those views 
+     * and allocates nothing. 
+     */
+    public void activate(int actionOn){
+        int count = getTriggeredMediaCount(actionOn);
+        if (count == 0){
+            return;
+        }
+        ImageMediaView[] views = mTriggerIndex[actionOn];
+        for (int i = 0; i < count; i++){
+            views[i].activateMe();
+        }
+    }
+
+    private LinkedList<ImageMediaView> triggeredImages(int actionOn){
+        LinkedList<ImageMediaView> result = new LinkedList<ImageMediaView>();
+        int count = getTriggeredMediaCount(actionOn);
+        for (int i = 0; i < count; i++){
+            result.add(mTriggerIndex[actionOn][i]);
         }
         return result;
     }
+
+    public LinkedList<ImageMediaView> soundActivatedImages() {
+        return triggeredImages(ImageMediaView.ACTION_ON_SOUND);
+    }
     /*
     public LinkedList<ImageMediaView> speechActivatedImages() {
         LinkedList<ImageMediaView> result = new LinkedList<ImageMediaView>();
@@ -577,23 +991,11 @@ public class AnimationManager {
     }
     */
     public LinkedList<ImageMediaView> NFCActivatedImages() {
-        LinkedList<ImageMediaView> result = new LinkedList<ImageMediaView>();
-
-        for (int i = 0; i < imageMedias.size(); i++){
-            if (imageMedias.get(i).actionOn == ImageMediaView.ACTION_ON_NFC){
-                result.add(imageMedias.get(i));
-            }
-        }
-        return result;
+        return triggeredImages(ImageMediaView.ACTION_ON_NFC);
     }
 
     public boolean hasSoundTriggeredMedia(){
-    	
-        if (soundActivatedImages().size() > 0) {
-            return true;
-        } else { 
-            return false;
-        }
+        return getTriggeredMediaCount(ImageMediaView.ACTION_ON_SOUND) > 0;
     }
     /*
     public boolean hasSpeechTriggeredMedia(){
@@ -610,9 +1012,7 @@ public class AnimationManager {
     * Triggers all the soundActivated Medias
     */
     public void soundActivate(){
-    	LinkedList<ImageMediaView> ims = soundActivatedImages();
-    	activateImageObjects(ims);
-
+    	activate(ImageMediaView.ACTION_ON_SOUND);
     }
     /*
     public void speechActivate(){
@@ -621,13 +1021,6 @@ public class AnimationManager {
     }
     */
     public void NFCActivate(){
-    	LinkedList<ImageMediaView> ims = NFCActivatedImages();
-    	activateImageObjects(ims);
-    }
-    
-    private void activateImageObjects(LinkedList<ImageMediaView> imgObjects){
-    	for (int i = 0; i < imgObjects.size(); i++){
-    		imgObjects.get(i).activateMe();
-        }
+    	activate(ImageMediaView.ACTION_ON_NFC);
     }
 }
@@ -0,0 +1,372 @@
+package fslt.lib.animation;
+
+import java.util.ArrayList;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.animation.Animator;
+import android.animation.ValueAnimator;
+import android.view.View;
+import android.view.animation.AccelerateDecelerateInterpolator;
+import android.view.animation.AccelerateInterpolator;
+import android.view.animation.BounceInterpolator;
+import android.view.animation.DecelerateInterpolator;
+import android.view.animation.Interpolator;
+import android.view.animation.LinearInterpolator;
+import android.view.animation.OvershootInterpolator;
+
+/*
+ * AnimationTemplate is an animation compiled once from a small JSON description, then 
+ * played on any number of views. Each step animates one view property; all steps start 
+ * together, offset by their delay. 
+ * <p>
+ * Playing a template takes an idle instance from the template's pool, retargets it to 
+ * the view and restarts its animators. An instance is a ValueAnimator per step, created 
+ * once with its interpolator, repeat and listeners, that writes the property straight 
+ * from the animated fraction, so a trigger allocates nothing once the pool holds as many 
+ * instances as animations run at the same time. getAllocationCount() counts the 
+ * instances created, it stops growing in steady state. 
+ * <p>
+ * Format, all step fields but property optional: 
+ * <pre>
+ * {@code
+ * { "code": 107, "name": "jump", "steps": [
+ *     { "property": "y", "from": 0, "to": -1, "unit": "smallHop", "relative": true,
+ *       "duration": 400, "delay": 0, "repeat": 1, "mode": "reverse",
+ *       "interpolator": "decelerate" } ] }
+ * }
+ * </pre>
+ * property is one of x, y, translationX, translationY, alpha, scaleX, scaleY, rotation, 
+ * rotationX, rotationY. A missing from starts at the view's current value. relative 
+ * values are added to the view's value when the animation starts. unit scales from and 
+ * to by px (default), tinyHop, smallHop or bigHop. A duration of -1 (default) uses the 
+ * duration passed to the trigger. mode is restart or reverse. 
+ */
+public class AnimationTemplate {
+
+    static final int PROPERTY_X = 0;
+    static final int PROPERTY_Y = 1;
+    static final int PROPERTY_TRANSLATION_X = 2;
+    static final int PROPERTY_TRANSLATION_Y = 3;
+    static final int PROPERTY_ALPHA = 4;
+    static final int PROPERTY_SCALE_X = 5;
+    static final int PROPERTY_SCALE_Y = 6;
+    static final int PROPERTY_ROTATION = 7;
+    static final int PROPERTY_ROTATION_X = 8;
+    static final int PROPERTY_ROTATION_Y = 9;
+    private static final String[] PROPERTY_NAMES = { "x", "y", "translationX", "translationY", "alpha", 
+    		"scaleX", "scaleY", "rotation", "rotationX", "rotationY" };
+
+    static final int UNIT_PX = 0;
+    static final int UNIT_TINY_HOP = 1;
+    static final int UNIT_SMALL_HOP = 2;
+    static final int UNIT_BIG_HOP = 3;
+    private static final String[] UNIT_NAMES = { "px", "tinyHop", "smallHop", "bigHop" };
+
+    // shared by all templates, interpolators keep no state
+    private static final Interpolator LINEAR = new LinearInterpolator();
+    private static final Interpolator ACCELERATE = new AccelerateInterpolator();
+    private static final Interpolator DECELERATE = new DecelerateInterpolator();
+    private static final Interpolator ACCELERATE_DECELERATE = new AccelerateDecelerateInterpolator();
+    private static final Interpolator OVERSHOOT = new OvershootInterpolator();
+    private static final Interpolator BOUNCE = new BounceInterpolator();
+
+    private final int mCode;
+    private final String mName;
+    // steps as parallel arrays
+    final int[] mProperties;
+    final float[] mFrom;
+    final float[] mTo;
+    final int[] mUnits;
+    final boolean[] mRelative;
+    final long[] mDurations;
+    final long[] mDelays;
+    final int[] mRepeatCounts;
+    final int[] mRepeatModes;
+    final Interpolator[] mInterpolators;
+
+    private AnimationManager mManager;
+    private final ArrayList<Instance> mIdle = new ArrayList<Instance>();
+    private long mAllocationCount;
+
+    private AnimationTemplate(int code, String name, int steps) {
+        mCode = code;
+        mName = name;
+        mProperties = new int[steps];
+        mFrom = new float[steps];
+        mTo = new float[steps];
+        mUnits = new int[steps];
+        mRelative = new boolean[steps];
+        mDurations = new long[steps];
+        mDelays = new long[steps];
+        mRepeatCounts = new int[steps];
+        mRepeatModes = new int[steps];
+        mInterpolators = new Interpolator[steps];
+    }
+
+    /**
+     * Compile one animation description. 
+     * 
+     * @throws JSONException 
+     * 				if the description is malformed, has no steps or uses an unknown 
+     * 				property, unit, mode or interpolator
+     */
+    public static AnimationTemplate compile(JSONObject json) throws JSONException {
+        JSONArray steps = json.getJSONArray("steps");
+        if (steps.length() == 0){
+            // nothing would ever end it, the view would stay animating
+            throw new JSONException("animation without steps");
+        }
+        AnimationTemplate template = new AnimationTemplate(json.optInt("code", AnimationManager.NO_ANIMATION), 
+        		json.optString("name", null), steps.length());
+        for (int i = 0; i < steps.length(); i++){
+            JSONObject step = steps.getJSONObject(i);
+            template.mProperties[i] = indexOf(PROPERTY_NAMES, step.getString("property"), "property");
+            template.mFrom[i] = step.has("from") ? (float) step.getDouble("from") : Float.NaN;
+            template.mTo[i] = (float) step.getDouble("to");
+            template.mUnits[i] = indexOf(UNIT_NAMES, step.optString("unit", "px"), "unit");
+            template.mRelative[i] = step.optBoolean("relative", false);
+            template.mDurations[i] = step.optLong("duration", -1);
+            template.mDelays[i] = step.optLong("delay", 0);
+            template.mRepeatCounts[i] = step.optInt("repeat", 0);
+            String mode = step.optString("mode", "restart");
+            if ("reverse".equals(mode)){
+                template.mRepeatModes[i] = ValueAnimator.REVERSE;
+            } else if ("restart".equals(mode)){
+                template.mRepeatModes[i] = ValueAnimator.RESTART;
+            } else {
+                throw new JSONException("unknown mode " + mode);
+            }
+            template.mInterpolators[i] = interpolator(step.optString("interpolator", "accelerateDecelerate"));
+        }
+        return template;
+    }
+
+    /**
+     * Compile every description in an array, or in the "animations" array of an object. 
+     */
+    public static ArrayList<AnimationTemplate> compileAll(String json) throws JSONException {
+        String trimmed = json.trim();
+        JSONArray array = trimmed.startsWith("[") ? new JSONArray(trimmed) 
+        		: new JSONObject(trimmed).getJSONArray("animations");
+        ArrayList<AnimationTemplate> templates = new ArrayList<AnimationTemplate>(array.length());
+        for (int i = 0; i < array.length(); i++){
+            templates.add(compile(array.getJSONObject(i)));
+        }
+        return templates;
+    }
+
+    private static int indexOf(String[] names, String name, String what) throws JSONException {
+        for (int i = 0; i < names.length; i++){
+            if (names[i].equals(name)){
+                return i;
+            }
+        }
+        throw new JSONException("unknown " + what + " " + name);
+    }
+
+    /*
+     * Property code of one of the property names of the format, -1 if there is none. 
+     */
+    static int getPropertyCode(String name) {
+        for (int i = 0; i < PROPERTY_NAMES.length; i++){
+            if (PROPERTY_NAMES[i].equals(name)){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Interpolator interpolator(String name) throws JSONException {
+        if ("linear".equals(name)) return LINEAR;
+        if ("accelerate".equals(name)) return ACCELERATE;
+        if ("decelerate".equals(name)) return DECELERATE;
+        if ("accelerateDecelerate".equals(name)) return ACCELERATE_DECELERATE;
+        if ("overshoot".equals(name)) return OVERSHOOT;
+        if ("bounce".equals(name)) return BOUNCE;
+        throw new JSONException("unknown interpolator " + name);
+    }
+
+    /**
+     * @return animation code the template was described for, NO_ANIMATION if none 
+     */
+    public int getCode() {
+        return mCode;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getStepCount() {
+        return mProperties.length;
+    }
+
+    /**
+     * @return number of animator instances created so far 
+     */
+    public long getAllocationCount() {
+        return mAllocationCount;
+    }
+
+    void setManager(AnimationManager manager) {
+        mManager = manager;
+    }
+
+    /**
+     * Play the template on view, must be called on the main thread. 
+     * 
+     * @param duration 
+     * 				used by steps without a duration of their own
+     * @param animationCode 
+     * 				code the template is played for, reported when it completes 
+     * @return the playing instance, to cancel it 
+     */
+    Instance start(View view, int duration, int animationCode) {
+        Instance instance;
+        int idle = mIdle.size();
+        if (idle > 0){
+            instance = mIdle.remove(idle - 1);
+        } else {
+            instance = new Instance();
+            mAllocationCount++;
+        }
+        instance.start(view, duration, animationCode);
+        return instance;
+    }
+
+    static float getProperty(View view, int property) {
+        switch (property){
+            case PROPERTY_X: return view.getX();
+            case PROPERTY_Y: return view.getY();
+            case PROPERTY_TRANSLATION_X: return view.getTranslationX();
+            case PROPERTY_TRANSLATION_Y: return view.getTranslationY();
+            case PROPERTY_ALPHA: return view.getAlpha();
+            case PROPERTY_SCALE_X: return view.getScaleX();
+            case PROPERTY_SCALE_Y: return view.getScaleY();
+            case PROPERTY_ROTATION: return view.getRotation();
+            case PROPERTY_ROTATION_X: return view.getRotationX();
+            default: return view.getRotationY();
+        }
+    }
+
+    static void setProperty(View view, int property, float value) {
+        switch (property){
+            case PROPERTY_X: view.setX(value); break;
+            case PROPERTY_Y: view.setY(value); break;
+            case PROPERTY_TRANSLATION_X: view.setTranslationX(value); break;
+            case PROPERTY_TRANSLATION_Y: view.setTranslationY(value); break;
+            case PROPERTY_ALPHA: view.setAlpha(value); break;
+            case PROPERTY_SCALE_X: view.setScaleX(value); break;
+            case PROPERTY_SCALE_Y: view.setScaleY(value); break;
+            case PROPERTY_ROTATION: view.setRotation(value); break;
+            case PROPERTY_ROTATION_X: view.setRotationX(value); break;
+            default: view.setRotationY(value); break;
+        }
+    }
+
+    float unit(int unit) {
+        switch (unit){
+            case UNIT_TINY_HOP: return mManager.getTinyHop();
+            case UNIT_SMALL_HOP: return mManager.getSmallHop();
+            case UNIT_BIG_HOP: return mManager.getBigHop();
+            default: return 1f;
+        }
+    }
+
+    /*
+     * One playable copy of the template, a ValueAnimator per step. 
+     */
+    class Instance implements ValueAnimator.AnimatorUpdateListener, Animator.AnimatorListener {
+        private final ValueAnimator[] mAnimators;
+        private final float[] mStart;
+        private final float[] mEnd;
+        private View mTarget;
+        private int mCode;
+        private long mStartNanos;
+        private int mRunning;
+        private boolean mCancelled;
+
+        Instance() {
+            int steps = mProperties.length;
+            mAnimators = new ValueAnimator[steps];
+            mStart = new float[steps];
+            mEnd = new float[steps];
+            for (int i = 0; i < steps; i++){
+                ValueAnimator animator = ValueAnimator.ofFloat(0f, 1f);
+                animator.setStartDelay(mDelays[i]);
+                animator.setRepeatCount(mRepeatCounts[i]);
+                animator.setRepeatMode(mRepeatModes[i]);
+                animator.setInterpolator(mInterpolators[i]);
+                animator.addUpdateListener(this);
+                animator.addListener(this);
+                mAnimators[i] = animator;
+            }
+        }
+
+        void start(View view, int duration, int animationCode) {
+            mTarget = view;
+            mCode = animationCode;
+            mStartNanos = System.nanoTime();
+            mRunning = mAnimators.length;
+            mCancelled = false;
+            for (int i = 0; i < mAnimators.length; i++){
+                float current = getProperty(view, mProperties[i]);
+                float scale = unit(mUnits[i]);
+                float base = mRelative[i] ? current : 0f;
+                mStart[i] = Float.isNaN(mFrom[i]) ? current : base + mFrom[i] * scale;
+                mEnd[i] = base + mTo[i] * scale;
+                mAnimators[i].setDuration(mDurations[i] < 0 ? duration : mDurations[i]);
+            }
+            for (int i = 0; i < mAnimators.length; i++){
+                mAnimators[i].start();
+            }
+        }
+
+        /*
+         * Stop every step where it is, the instance then finishes as if it had ended. 
+         */
+        void cancel() {
+            for (int i = 0; i < mAnimators.length; i++){
+                mAnimators[i].cancel();
+            }
+        }
+
+        @Override
+        public void onAnimationUpdate(ValueAnimator animation) {
+            for (int i = 0; i < mAnimators.length; i++){
+                if (mAnimators[i] == animation){
+                    float fraction = animation.getAnimatedFraction();
+                    setProperty(mTarget, mProperties[i], mStart[i] + (mEnd[i] - mStart[i]) * fraction);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void onAnimationEnd(Animator animation) {
+            if (--mRunning > 0){
+                return;
+            }
+            View target = mTarget;
+            mTarget = null;
+            mIdle.add(this);
+            mManager.onAnimationFinished(target, mCode, mStartNanos, this, 0, mCancelled);
+        }
+
+        @Override
+        public void onAnimationStart(Animator animation) {
+        }
+
+        @Override
+        public void onAnimationCancel(Animator animation) {
+            mCancelled = true;
+        }
+
+        @Override
+        public void onAnimationRepeat(Animator animation) {
+        }
+    }
+}
@@ -0,0 +1,501 @@
+package fslt.lib.animation;
+
+import java.util.Arrays;
+
+import android.animation.ValueAnimator;
+import android.os.Build;
+import android.view.Choreographer;
+import android.view.View;
+import android.view.animation.AnimationUtils;
+import android.view.animation.Interpolator;
+
+/*
+ * BatchAnimationEngine advances every active animation from one frame callback, instead
+ * of one ObjectAnimator per property per view each looking up its setter and scheduling
+ * itself. Animations are stored as tracks, one view property each, in parallel primitive
+ * arrays: timing, repeat and a short list of keyframes (fraction, value). Each frame walks
+ * the tracks once, interpolates the keyframes and writes the property with its setter.
+ * <p>
+ * Frames come from a Choreographer frame callback on Jelly Bean and later, and from a
+ * single shared ValueAnimator before that. The callback is only posted while tracks are
+ * active. Nothing is allocated per frame or per trigger once the arrays have grown to
+ * the number of tracks running at the same time.
+ * <p>
+ * Per frame timing is kept for tuning: the time spent in the frame callback, the interval
+ * between frames and the number of late frames, frames that came more than 1.5 frame
+ * periods after the previous one.
+ * <p>
+ * Enabled with AnimationManager.setBatchEngineEnabled(true), it then plays every animation
+ * that has a template, see AnimationManager.enableBuiltInTemplates(). All methods must be
+ * called on the main thread.
+ */
+public class BatchAnimationEngine {
+
+    /** Most keyframes a track can have */
+    public static final int MAX_KEYFRAMES = 8;
+
+    // 60 Hz
+    private static final long FRAME_PERIOD_NANOS = 16666667L;
+    private static final long LATE_FRAME_NANOS = FRAME_PERIOD_NANOS * 3 / 2;
+
+    private final AnimationManager mManager;
+
+    // tracks as parallel arrays, [0, mCount) are active
+    private int mCount;
+    private View[] mViews;
+    private int[] mGroups;
+    private int[] mCodes;
+    private long[] mTriggerNanos;
+    private int[] mProperties;
+    private long[] mStartTimes;
+    private long[] mDelays;
+    private long[] mDurations;
+    private int[] mCycles;
+    private boolean[] mReverse;
+    private Interpolator[] mInterpolators;
+    private int[] mKeyCounts;
+    // keyframes of track i at [i * MAX_KEYFRAMES, i * MAX_KEYFRAMES + mKeyCounts[i])
+    private float[] mKeyFractions;
+    private float[] mKeyValues;
+    private int mNextGroup;
+
+    // views whose last track ended this frame, notified once the frame is done
+    private View[] mFinished = new View[8];
+    private int[] mFinishedGroups = new int[8];
+    private int[] mFinishedCodes = new int[8];
+    private long[] mFinishedTriggerNanos = new long[8];
+    private int mFinishedCount;
+
+    private boolean mScheduled;
+    private Object mFrameCallback;
+    private ValueAnimator mPulse;
+
+    // per frame timing
+    private long mFrameCount;
+    private long mLateFrameCount;
+    private long mLastFrameTimeNanos;
+    private long mLastFrameIntervalNanos;
+    private long mLastWorkNanos;
+    private long mMaxWorkNanos;
+    private long mTotalWorkNanos;
+    private int mLastTrackCount;
+
+    BatchAnimationEngine(AnimationManager manager){
+        mManager = manager;
+        allocate(32);
+    }
+
+    /**
+     * Play template on view, like AnimationTemplate would with its own animators.
+     *
+     * @param duration
+     * 				used by steps without a duration of their own
+     * @param animationCode
+     * 				code the template is played for, reported when it completes
+     * @return group of the tracks, reported with the end of the animation
+     */
+    int start(AnimationTemplate template, View view, int duration, int animationCode){
+        int group = mNextGroup++;
+        long now = System.nanoTime();
+        for (int i = 0; i < template.mProperties.length; i++){
+            int property = template.mProperties[i];
+            float current = AnimationTemplate.getProperty(view, property);
+            float scale = template.unit(template.mUnits[i]);
+            float base = template.mRelative[i] ? current : 0f;
+            float from = Float.isNaN(template.mFrom[i]) ? current : base + template.mFrom[i] * scale;
+            float to = base + template.mTo[i] * scale;
+            int track = addTrack(view, group, animationCode, now, property, template.mDelays[i],
+            		template.mDurations[i] < 0 ? duration : template.mDurations[i],
+            		template.mRepeatCounts[i], template.mRepeatModes[i] == ValueAnimator.REVERSE,
+            		template.mInterpolators[i]);
+            int key = track * MAX_KEYFRAMES;
+            mKeyFractions[key] = 0f;
+            mKeyValues[key] = from;
+            mKeyFractions[key + 1] = 1f;
+            mKeyValues[key + 1] = to;
+            mKeyCounts[track] = 2;
+        }
+        schedule();
+        return group;
+    }
+
+    /**
+     * Animate one property of view through keyframes. The manager is told when the view's
+     * animation ends, like for any other animation.
+     *
+     * @param property
+     * 				x, y, translationX, translationY, alpha, scaleX, scaleY, rotation,
+     * 				rotationX or rotationY
+     * @param fractions
+     * 				keyframe times as fractions of duration, ascending from 0 to 1
+     * @param values
+     * 				property value at each keyframe
+     * @param repeatCount
+     * 				number of times to play again after the first time
+     * @param reverse
+     * 				true to play every other repeat backwards
+     * @param interpolator
+     * 				applied to the fraction before the keyframes are looked up, null for
+     * 				linear
+     */
+    public void animate(View view, String property, float[] fractions, float[] values,
+    			long duration, long delay, int repeatCount, boolean reverse, Interpolator interpolator){
+        int code = AnimationTemplate.getPropertyCode(property);
+        if (code < 0){
+            throw new IllegalArgumentException("unknown property " + property);
+        }
+        int keys = fractions.length;
+        if (keys < 1 || keys > MAX_KEYFRAMES || values.length != keys){
+            throw new IllegalArgumentException("need 1 to " + MAX_KEYFRAMES + " keyframes with a value each");
+        }
+        int track = addTrack(view, mNextGroup++, AnimationManager.NO_ANIMATION, System.nanoTime(), code,
+        		delay, duration, repeatCount, reverse, interpolator);
+        System.arraycopy(fractions, 0, mKeyFractions, track * MAX_KEYFRAMES, keys);
+        System.arraycopy(values, 0, mKeyValues, track * MAX_KEYFRAMES, keys);
+        mKeyCounts[track] = keys;
+        schedule();
+    }
+
+    /**
+     * Stop the view's tracks where they are, each of its animations then finishes as if it
+     * had ended. Animations started by those completions keep playing.
+     */
+    public void cancel(View view){
+        int end = mNextGroup;
+        int i = 0;
+        while (i < mCount){
+            // wraps like the group counter
+            if (mViews[i] == view && mGroups[i] - end < 0){
+                cancel(view, mGroups[i]);
+                // completions may have moved any track
+                i = 0;
+            } else {
+                i++;
+            }
+        }
+    }
+
+    /*
+     * Stop the tracks of one animation of view, it then finishes as if it had ended.
+     */
+    void cancel(View view, int group){
+        boolean found = false;
+        int code = AnimationManager.NO_ANIMATION;
+        long triggerNanos = -1;
+        int i = 0;
+        while (i < mCount){
+            if (mGroups[i] == group && mViews[i] == view){
+                code = mCodes[i];
+                triggerNanos = mTriggerNanos[i];
+                remove(i);
+                found = true;
+            } else {
+                i++;
+            }
+        }
+        if (found){
+            mManager.onAnimationFinished(view, code, triggerNanos, this, group, true);
+        }
+    }
+
+    /**
+     * @return number of property tracks currently playing
+     */
+    public int getActiveTrackCount(){
+        return mCount;
+    }
+
+    /** @return frames run since the engine was created or resetStats() */
+    public long getFrameCount(){
+        return mFrameCount;
+    }
+
+    /** @return frames that came more than 1.5 frame periods after the previous one */
+    public long getLateFrameCount(){
+        return mLateFrameCount;
+    }
+
+    /** @return time between the last two frames, 0 after the first frame of a run */
+    public long getLastFrameIntervalNanos(){
+        return mLastFrameIntervalNanos;
+    }
+
+    /** @return time the last frame spent advancing tracks and writing properties */
+    public long getLastFrameWorkNanos(){
+        return mLastWorkNanos;
+    }
+
+    public long getMaxFrameWorkNanos(){
+        return mMaxWorkNanos;
+    }
+
+    public long getAverageFrameWorkNanos(){
+        return mFrameCount == 0 ? 0 : mTotalWorkNanos / mFrameCount;
+    }
+
+    /** @return tracks advanced by the last frame */
+    public int getLastFrameTrackCount(){
+        return mLastTrackCount;
+    }
+
+    public void resetStats(){
+        mFrameCount = 0;
+        mLateFrameCount = 0;
+        mLastFrameIntervalNanos = 0;
+        mLastWorkNanos = 0;
+        mMaxWorkNanos = 0;
+        mTotalWorkNanos = 0;
+        mLastTrackCount = 0;
+    }
+
+    private int addTrack(View view, int group, int code, long triggerNanos, int property, long delay,
+    			long duration, int repeatCount, boolean reverse, Interpolator interpolator){
+        if (mCount == mViews.length){
+            allocate(mCount * 2);
+        }
+        int i = mCount++;
+        mViews[i] = view;
+        mGroups[i] = group;
+        mCodes[i] = code;
+        mTriggerNanos[i] = triggerNanos;
+        mProperties[i] = property;
+        // set by the first frame that sees the track
+        mStartTimes[i] = -1;
+        mDelays[i] = delay;
+        mDurations[i] = duration;
+        mCycles[i] = repeatCount < 0 ? Integer.MAX_VALUE : repeatCount + 1;
+        mReverse[i] = reverse;
+        mInterpolators[i] = interpolator;
+        return i;
+    }
+
+    private void remove(int i){
+        int last = --mCount;
+        if (i != last){
+            mViews[i] = mViews[last];
+            mGroups[i] = mGroups[last];
+            mCodes[i] = mCodes[last];
+            mTriggerNanos[i] = mTriggerNanos[last];
+            mProperties[i] = mProperties[last];
+            mStartTimes[i] = mStartTimes[last];
+            mDelays[i] = mDelays[last];
+            mDurations[i] = mDurations[last];
+            mCycles[i] = mCycles[last];
+            mReverse[i] = mReverse[last];
+            mInterpolators[i] = mInterpolators[last];
+            mKeyCounts[i] = mKeyCounts[last];
+            System.arraycopy(mKeyFractions, last * MAX_KEYFRAMES, mKeyFractions, i * MAX_KEYFRAMES, mKeyCounts[last]);
+            System.arraycopy(mKeyValues, last * MAX_KEYFRAMES, mKeyValues, i * MAX_KEYFRAMES, mKeyCounts[last]);
+        }
+        mViews[last] = null;
+        mInterpolators[last] = null;
+    }
+
+    private void allocate(int capacity){
+        if (mViews == null){
+            mViews = new View[capacity];
+            mGroups = new int[capacity];
+            mCodes = new int[capacity];
+            mTriggerNanos = new long[capacity];
+            mProperties = new int[capacity];
+            mStartTimes = new long[capacity];
+            mDelays = new long[capacity];
+            mDurations = new long[capacity];
+            mCycles = new int[capacity];
+            mReverse = new boolean[capacity];
+            mInterpolators = new Interpolator[capacity];
+            mKeyCounts = new int[capacity];
+            mKeyFractions = new float[capacity * MAX_KEYFRAMES];
+            mKeyValues = new float[capacity * MAX_KEYFRAMES];
+            return;
+        }
+        mViews = Arrays.copyOf(mViews, capacity);
+        mGroups = Arrays.copyOf(mGroups, capacity);
+        mCodes = Arrays.copyOf(mCodes, capacity);
+        mTriggerNanos = Arrays.copyOf(mTriggerNanos, capacity);
+        mProperties = Arrays.copyOf(mProperties, capacity);
+        mStartTimes = Arrays.copyOf(mStartTimes, capacity);
+        mDelays = Arrays.copyOf(mDelays, capacity);
+        mDurations = Arrays.copyOf(mDurations, capacity);
+        mCycles = Arrays.copyOf(mCycles, capacity);
+        mReverse = Arrays.copyOf(mReverse, capacity);
+        mInterpolators = Arrays.copyOf(mInterpolators, capacity);
+        mKeyCounts = Arrays.copyOf(mKeyCounts, capacity);
+        mKeyFractions = Arrays.copyOf(mKeyFractions, capacity * MAX_KEYFRAMES);
+        mKeyValues = Arrays.copyOf(mKeyValues, capacity * MAX_KEYFRAMES);
+    }
+
+    private void schedule(){
+        if (mScheduled){
+            return;
+        }
+        mScheduled = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN){
+            if (mFrameCallback == null){
+                mFrameCallback = new FrameCallback(this);
+            }
+            Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) mFrameCallback);
+        } else {
+            if (mPulse == null){
+                // only used for its frame pulse, its values are ignored
+                mPulse = ValueAnimator.ofFloat(0f, 1f);
+                mPulse.setDuration(1000);
+                mPulse.setRepeatCount(ValueAnimator.INFINITE);
+                mPulse.addUpdateListener(new ValueAnimator.AnimatorUpdateListener() {
+                    @Override
+                    public void onAnimationUpdate(ValueAnimator animation) {
+                        doFrame(AnimationUtils.currentAnimationTimeMillis() * 1000000L);
+                    }
+                });
+            }
+            mPulse.start();
+        }
+    }
+
+    void doFrame(long frameTimeNanos){
+        long workStart = System.nanoTime();
+        if (mPulse == null){
+            // the frame callback is used up, the pulse keeps running
+            mScheduled = false;
+        }
+        if (mLastFrameTimeNanos != 0){
+            mLastFrameIntervalNanos = frameTimeNanos - mLastFrameTimeNanos;
+            if (mLastFrameIntervalNanos > LATE_FRAME_NANOS){
+                mLateFrameCount++;
+            }
+        } else {
+            mLastFrameIntervalNanos = 0;
+        }
+        mLastFrameTimeNanos = frameTimeNanos;
+        long now = frameTimeNanos / 1000000L;
+        mLastTrackCount = mCount;
+
+        // one pass over every track
+        int i = 0;
+        while (i < mCount){
+            if (mStartTimes[i] < 0){
+                mStartTimes[i] = now + mDelays[i];
+            }
+            long elapsed = now - mStartTimes[i];
+            if (elapsed < 0){
+                i++;
+                continue;
+            }
+            long duration = mDurations[i];
+            int cycles = mCycles[i];
+            boolean done;
+            float fraction;
+            if (duration <= 0 || elapsed >= duration * cycles){
+                done = true;
+                // where the last cycle ends, backwards if it played in reverse
+                fraction = mReverse[i] && cycles % 2 == 0 ? 0f : 1f;
+            } else {
+                done = false;
+                long cycle = elapsed / duration;
+                fraction = (float) (elapsed - cycle * duration) / duration;
+                if (mReverse[i] && (cycle & 1) == 1){
+                    fraction = 1f - fraction;
+                }
+            }
+            if (mInterpolators[i] != null){
+                fraction = mInterpolators[i].getInterpolation(fraction);
+            }
+            AnimationTemplate.setProperty(mViews[i], mProperties[i], valueAt(i, fraction));
+            if (done){
+                View view = mViews[i];
+                int group = mGroups[i];
+                int code = mCodes[i];
+                long triggerNanos = mTriggerNanos[i];
+                remove(i);
+                if (!hasGroup(group)){
+                    addFinished(view, group, code, triggerNanos);
+                }
+            } else {
+                i++;
+            }
+        }
+
+        long work = System.nanoTime() - workStart;
+        mLastWorkNanos = work;
+        mTotalWorkNanos += work;
+        if (work > mMaxWorkNanos){
+            mMaxWorkNanos = work;
+        }
+        mFrameCount++;
+
+        // completions may start new animations, so they are told once the pass is over
+        int finished = mFinishedCount;
+        mFinishedCount = 0;
+        for (int f = 0; f < finished; f++){
+            View view = mFinished[f];
+            mFinished[f] = null;
+            mManager.onAnimationFinished(view, mFinishedCodes[f], mFinishedTriggerNanos[f], this,
+            		mFinishedGroups[f], false);
+        }
+        if (mCount > 0){
+            schedule();
+        } else {
+            mLastFrameTimeNanos = 0;
+            if (mPulse != null){
+                mPulse.cancel();
+                mScheduled = false;
+            }
+        }
+    }
+
+    private float valueAt(int track, float fraction){
+        int base = track * MAX_KEYFRAMES;
+        int last = base + mKeyCounts[track] - 1;
+        if (fraction <= mKeyFractions[base]){
+            return mKeyValues[base];
+        }
+        for (int k = base; k < last; k++){
+            float end = mKeyFractions[k + 1];
+            if (fraction <= end){
+                float start = mKeyFractions[k];
+                float t = end > start ? (fraction - start) / (end - start) : 1f;
+                return mKeyValues[k] + (mKeyValues[k + 1] - mKeyValues[k]) * t;
+            }
+        }
+        return mKeyValues[last];
+    }
+
+    private boolean hasGroup(int group){
+        for (int i = 0; i < mCount; i++){
+            if (mGroups[i] == group){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addFinished(View view, int group, int code, long triggerNanos){
+        if (mFinishedCount == mFinished.length){
+            mFinished = Arrays.copyOf(mFinished, mFinishedCount * 2);
+            mFinishedGroups = Arrays.copyOf(mFinishedGroups, mFinishedCount * 2);
+            mFinishedCodes = Arrays.copyOf(mFinishedCodes, mFinishedCount * 2);
+            mFinishedTriggerNanos = Arrays.copyOf(mFinishedTriggerNanos, mFinishedCount * 2);
+        }
+        mFinished[mFinishedCount] = view;
+        mFinishedGroups[mFinishedCount] = group;
+        mFinishedCodes[mFinishedCount] = code;
+        mFinishedTriggerNanos[mFinishedCount] = triggerNanos;
+        mFinishedCount++;
+    }
+
+    /*
+     * Kept in its own class so that Choreographer is only loaded on Jelly Bean and later.
+     */
+    private static class FrameCallback implements Choreographer.FrameCallback {
+        private final BatchAnimationEngine mEngine;
+
+        FrameCallback(BatchAnimationEngine engine){
+            mEngine = engine;
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mEngine.doFrame(frameTimeNanos);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package fslt.lib.animation;
+
+import android.animation.Animator;
+import android.view.View;
+
+import fslt.lib.views.ImageMediaView;
+
+/*
+ * ViewAnimationController is the animation state of one ImageMediaView, so that views 
+ * animating at the same time never share mutable state. It moves through 
+ * <pre>
+ * IDLE -> RUNNING -> (QUEUED -> RUNNING)* -> IDLE
+ *            \-> CANCELLING -> IDLE
+ * </pre>
+ * and decides what a trigger that arrives while the view is animating does, see the 
+ * POLICY_ constants. The view's start position, alpha and scale are captured when each 
+ * animation starts. All methods must be called on the main thread. 
+ */
+public class ViewAnimationController {
+
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_RUNNING = 1;
+    /** running, with more triggers waiting */
+    public static final int STATE_QUEUED = 2;
+    /** cancel requested, waiting for the running animation to end */
+    public static final int STATE_CANCELLING = 3;
+
+    /** Triggers while animating are dropped, the original behaviour */
+    public static final int POLICY_IGNORE = 0;
+    /** Triggers while animating collapse into one, the latest, played afterwards */
+    public static final int POLICY_COALESCE = 1;
+    /** Triggers while animating are played in order afterwards, up to MAX_QUEUED */
+    public static final int POLICY_QUEUE = 2;
+
+    public static final int MAX_QUEUED = 8;
+
+    // running after begin() with nothing registered, the end of any animation ends it
+    private static final Object UNTRACKED = new Object();
+
+    private final ImageMediaView mView;
+    private int mState = STATE_IDLE;
+    private int mPolicy = POLICY_IGNORE;
+
+    // waiting triggers, a ring of animation codes and durations
+    private final int[] mQueuedCodes = new int[MAX_QUEUED];
+    private final int[] mQueuedDurations = new int[MAX_QUEUED];
+    private int mQueueHead;
+    private int mQueueSize;
+    private int mNextCode;
+    private int mNextDuration;
+
+    // what is running, to cancel it and to know its end: an Animator, a template instance, 
+    // the batch engine with mRunningGroup, or UNTRACKED
+    private Object mRunning;
+    private int mRunningGroup;
+
+    // view values when the current animation started
+    private float mStartX;
+    private float mStartY;
+    private float mStartAlpha;
+    private float mStartScaleX;
+    private float mStartScaleY;
+
+    public ViewAnimationController(ImageMediaView view){
+        mView = view;
+    }
+
+    public int getState(){
+        return mState;
+    }
+
+    public boolean isAnimating(){
+        return mState != STATE_IDLE;
+    }
+
+    /**
+     * @param policy 
+     * 				POLICY_IGNORE, POLICY_COALESCE or POLICY_QUEUE 
+     */
+    public void setTriggerPolicy(int policy){
+        mPolicy = policy;
+    }
+
+    public int getTriggerPolicy(){
+        return mPolicy;
+    }
+
+    /**
+     * A trigger arrived. 
+     * 
+     * @return true if the animation should start now, false if it was queued or dropped 
+     */
+    boolean onTrigger(int animationCode, int duration){
+        switch (mState){
+            case STATE_IDLE:
+                start();
+                return true;
+            case STATE_CANCELLING:
+                return false;
+            default:
+                if (mPolicy == POLICY_COALESCE){
+                    mQueueHead = 0;
+                    mQueueSize = 0;
+                    enqueue(animationCode, duration);
+                } else if (mPolicy == POLICY_QUEUE){
+                    enqueue(animationCode, duration);
+                }
+                return false;
+        }
+    }
+
+    /**
+     * Mark the view as animating without a trigger, e.g. for a drag glide back. Until the 
+     * animation is registered with setRunning(), the end of any animation of the view 
+     * ends it. 
+     * 
+     * @return false if it already was 
+     */
+    public boolean begin(){
+        if (mState != STATE_IDLE){
+            return false;
+        }
+        start();
+        mRunning = UNTRACKED;
+        return true;
+    }
+
+    /**
+     * An animation of the view ended. Only the end of the running animation moves the 
+     * view on, others, e.g. an action method called directly or a batch engine track, 
+     * are ignored. 
+     * 
+     * @param source 
+     * 				what ended, as given to setRunning(), null for an action with 
+     * 				nothing to animate 
+     * @param group 
+     * 				batch engine group when source is the engine 
+     * @return true if a queued trigger should be played now, see getNextCode() and 
+     * 				getNextDuration() 
+     */
+    boolean onFinished(Object source, int group){
+        if (mRunning != UNTRACKED && (source != mRunning 
+        			|| (source instanceof BatchAnimationEngine && group != mRunningGroup))){
+            return false;
+        }
+        mRunning = null;
+        if (mState == STATE_RUNNING || mState == STATE_IDLE || mState == STATE_CANCELLING){
+            setState(STATE_IDLE);
+            return false;
+        }
+        mNextCode = mQueuedCodes[mQueueHead];
+        mNextDuration = mQueuedDurations[mQueueHead];
+        mQueueHead = (mQueueHead + 1) % MAX_QUEUED;
+        mQueueSize--;
+        start();
+        if (mQueueSize > 0){
+            setState(STATE_QUEUED);
+        }
+        return true;
+    }
+
+    int getNextCode(){
+        return mNextCode;
+    }
+
+    int getNextDuration(){
+        return mNextDuration;
+    }
+
+    /**
+     * Drop waiting triggers and stop the running animation. Animations the manager can not 
+     * reach, e.g. the second half of a flip, run to their end, the view stays CANCELLING 
+     * until then. 
+     */
+    public void cancel(){
+        if (mState == STATE_IDLE || mState == STATE_CANCELLING){
+            return;
+        }
+        mQueueHead = 0;
+        mQueueSize = 0;
+        setState(STATE_CANCELLING);
+        stop(mRunning, mRunningGroup);
+    }
+
+    /**
+     * Forget all state and stop the running animation, e.g. after the view was reset by 
+     * hand. The view is IDLE before the animation is stopped, so its end is ignored. 
+     */
+    public void reset(){
+        Object running = mRunning;
+        mQueueHead = 0;
+        mQueueSize = 0;
+        mRunning = null;
+        setState(STATE_IDLE);
+        stop(running, mRunningGroup);
+    }
+
+    void setRunning(Object running){
+        mRunning = running;
+    }
+
+    void setRunning(BatchAnimationEngine engine, int group){
+        mRunning = engine;
+        mRunningGroup = group;
+    }
+
+    float getStartX(){
+        return mStartX;
+    }
+
+    float getStartY(){
+        return mStartY;
+    }
+
+    float getStartAlpha(){
+        return mStartAlpha;
+    }
+
+    float getStartScaleX(){
+        return mStartScaleX;
+    }
+
+    float getStartScaleY(){
+        return mStartScaleY;
+    }
+
+    private void enqueue(int animationCode, int duration){
+        if (mQueueSize == MAX_QUEUED){
+            return;
+        }
+        int tail = (mQueueHead + mQueueSize) % MAX_QUEUED;
+        mQueuedCodes[tail] = animationCode;
+        mQueuedDurations[tail] = duration;
+        mQueueSize++;
+        setState(STATE_QUEUED);
+    }
+
+    private void stop(Object running, int group){
+        if (running instanceof Animator){
+            ((Animator) running).cancel();
+        } else if (running instanceof AnimationTemplate.Instance){
+            ((AnimationTemplate.Instance) running).cancel();
+        } else if (running instanceof BatchAnimationEngine){
+            ((BatchAnimationEngine) running).cancel(mView, group);
+        }
+    }
+
+    private void start(){
+        View view = mView;
+        mStartX = view.getX();
+        mStartY = view.getY();
+        mStartAlpha = view.getAlpha();
+        mStartScaleX = view.getScaleX();
+        mStartScaleY = view.getScaleY();
+        setState(STATE_RUNNING);
+    }
+
+    private void setState(int state){
+        mState = state;
+        // kept in step for code that still reads the field
+        mView.isAnimated = state != STATE_IDLE;
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2013 StoryScape Project. All rights reserved.
+ *
+ *
+ */
+package fslt.lib.bitmap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import fslt.lib.views.ImageMediaView;
+
+/**
+ * Decodes story images on a bounded pool of background threads and hands the
+ * result to an ImageMediaView on the main thread, so page turns never decode
+ * on the UI thread.
+ * <p>
+ * Binding a view again cancels the request it was previously bound to. A
+ * prefetch hint (e.g. the images of the next pages) decodes into the
+ * BitmapFileOperations memory cache at lower priority than view loads, so
+ * those pages are warm before the user swipes. All methods must be called
+ * from the main thread.
+ *
+ * <pre>
+ * BitmapFileOperations ops = new BitmapFileOperations(context);
+ * ops.setMemoryCache(BitmapMemoryCache.withHeapFraction(0.125f));
+ * AsyncImageLoader loader = new AsyncImageLoader(ops, 2);
+ * loader.load(imageView, BitmapFileOperations.EXTERNAL_STORAGE, "story/page1.png", 0, 0, true);
+ * loader.prefetch(BitmapFileOperations.EXTERNAL_STORAGE, nextPageFileNames, 0, 0, true);
+ * </pre>
+ */
+public class AsyncImageLoader {
+	private static final String TAG = AsyncImageLoader.class.getSimpleName();
+
+	private static final int PRIORITY_LOAD = 0;
+	private static final int PRIORITY_PREFETCH = 1;
+
+	/**
+	 * Optional callbacks, always called on the main thread.
+	 */
+	public static abstract class ImageLoadListener {
+		public void onImageLoaded(ImageMediaView view, String fileName, Bitmap bitmap) {
+
+		}
+
+		public void onImageLoadFailed(ImageMediaView view, String fileName, Exception e) {
+
+		}
+	}
+
+	private final BitmapFileOperations mBitmapFileOperations;
+	private final ThreadPoolExecutor mExecutor;
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+	private final AtomicLong mNextSequence = new AtomicLong();
+	private final Map<ImageMediaView, Request> mBoundRequests = new WeakHashMap<ImageMediaView, Request>();
+	private final List<Request> mPrefetchRequests = new ArrayList<Request>();
+	private ImageLoadListener mListener;
+
+	/**
+	 * @param bitmapFileOperations
+	 *            used for every decode, set a memory cache on it for prefetch
+	 *            to have any effect
+	 * @param threads
+	 *            number of background decode threads
+	 */
+	public AsyncImageLoader(BitmapFileOperations bitmapFileOperations, int threads) {
+		mBitmapFileOperations = bitmapFileOperations;
+		mExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<Runnable>(), new DecodeThreadFactory());
+	}
+
+	public void setImageLoadListener(ImageLoadListener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Load fileName into view. A bitmap already in the memory cache is set
+	 * right away, otherwise it is decoded in the background and set on the
+	 * main thread unless view was bound to another request in the meantime.
+	 *
+	 * @param width
+	 *            width to open the bitmap at, 0 for its natural size
+	 * @param height
+	 *            height to open the bitmap at, 0 for its natural size
+	 * @see BitmapFileOperations#openBitmapAtSizeFromStorageLocation
+	 */
+	public void load(ImageMediaView view, int location, String fileName, int width, int height,
+			boolean openWithScreenDpi) {
+		cancel(view);
+		BitmapMemoryCache cache = mBitmapFileOperations.getMemoryCache();
+		if (cache != null) {
+			Bitmap cached = cache.get(location, fileName, width, height, openWithScreenDpi);
+			if (cached != null) {
+				deliver(view, fileName, cached);
+				return;
+			}
+		}
+		Request request = new Request(PRIORITY_LOAD, view, location, fileName, width, height, openWithScreenDpi);
+		mBoundRequests.put(view, request);
+		mExecutor.execute(request);
+	}
+
+	/**
+	 * Cancel the request view is bound to, if any. Its bitmap will not be set.
+	 */
+	public void cancel(ImageMediaView view) {
+		Request previous = mBoundRequests.remove(view);
+		if (previous != null) {
+			previous.cancel();
+		}
+	}
+
+	/**
+	 * Hint that fileNames are about to be shown, e.g. the images of the next N
+	 * pages. They are decoded into the memory cache behind any view loads. A
+	 * new hint replaces the previous one, whatever of it has not started yet
+	 * is dropped.
+	 */
+	public void prefetch(int location, List<String> fileNames, int width, int height, boolean openWithScreenDpi) {
+		cancelPrefetch();
+		BitmapMemoryCache cache = mBitmapFileOperations.getMemoryCache();
+		if (cache == null) {
+			Log.w(TAG, "prefetch ignored, BitmapFileOperations has no memory cache");
+			return;
+		}
+		for (String fileName : fileNames) {
+			if (cache.get(location, fileName, width, height, openWithScreenDpi) != null) {
+				continue;
+			}
+			Request request = new Request(PRIORITY_PREFETCH, null, location, fileName, width, height,
+					openWithScreenDpi);
+			mPrefetchRequests.add(request);
+			mExecutor.execute(request);
+		}
+	}
+
+	public void cancelPrefetch() {
+		for (Request request : mPrefetchRequests) {
+			request.cancel();
+		}
+		mPrefetchRequests.clear();
+	}
+
+	/**
+	 * Cancel everything and stop the decode threads, the loader cannot be used
+	 * afterwards.
+	 */
+	public void shutdown() {
+		for (Request request : mBoundRequests.values()) {
+			request.cancel();
+		}
+		mBoundRequests.clear();
+		cancelPrefetch();
+		mExecutor.shutdownNow();
+	}
+
+	private void deliver(ImageMediaView view, String fileName, Bitmap bitmap) {
+		view.setImageBitmap(bitmap);
+		if (mListener != null) {
+			mListener.onImageLoaded(view, fileName, bitmap);
+		}
+	}
+
+	/**
+	 * Decode job, ordered by priority and then by submission so view loads
+	 * overtake queued prefetches.
+	 */
+	private class Request implements Runnable, Comparable<Request> {
+		private final int mPriority;
+		private final long mSequence;
+		private final ImageMediaView mView;
+		private final int mLocation;
+		private final String mFileName;
+		private final int mWidth;
+		private final int mHeight;
+		private final boolean mOpenWithScreenDpi;
+		private volatile boolean mCancelled;
+
+		Request(int priority, ImageMediaView view, int location, String fileName, int width, int height,
+				boolean openWithScreenDpi) {
+			mPriority = priority;
+			mSequence = mNextSequence.getAndIncrement();
+			mView = view;
+			mLocation = location;
+			mFileName = fileName;
+			mWidth = width;
+			mHeight = height;
+			mOpenWithScreenDpi = openWithScreenDpi;
+		}
+
+		void cancel() {
+			mCancelled = true;
+			mExecutor.remove(this);
+		}
+
+		@Override
+		public int compareTo(Request other) {
+			if (mPriority != other.mPriority) {
+				return mPriority < other.mPriority ? -1 : 1;
+			}
+			return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+		}
+
+		@Override
+		public void run() {
+			if (mCancelled) {
+				return;
+			}
+			Bitmap bitmap = null;
+			Exception failure = null;
+			try {
+				if (mWidth > 0 && mHeight > 0) {
+					bitmap = mBitmapFileOperations.openBitmapAtSizeFromStorageLocation(mLocation, mFileName, mWidth,
+							mHeight, mOpenWithScreenDpi);
+				} else {
+					bitmap = mBitmapFileOperations.openBitmapFromStorageLocation(mLocation, mFileName,
+							mOpenWithScreenDpi);
+				}
+			} catch (Exception e) {
+				failure = e;
+			}
+			if (mView == null) {
+				if (failure != null) {
+					Log.w(TAG, "prefetch of " + mFileName + " failed", failure);
+				}
+				return;
+			}
+			final Bitmap result = bitmap;
+			final Exception error = failure;
+			mMainHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					// the view may have been rebound while decoding
+					if (mCancelled || mBoundRequests.get(mView) != Request.this) {
+						return;
+					}
+					mBoundRequests.remove(mView);
+					if (result != null) {
+						deliver(mView, mFileName, result);
+					} else if (mListener != null) {
+						mListener.onImageLoadFailed(mView, mFileName, error);
+					}
+				}
+			});
+		}
+	}
+
+	private static class DecodeThreadFactory implements ThreadFactory {
+		private final AtomicInteger mCount = new AtomicInteger();
+
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			return new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					runnable.run();
+				}
+			}, TAG + " #" + mCount.incrementAndGet());
+		}
+	}
+}
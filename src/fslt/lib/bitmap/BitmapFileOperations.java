@@ -8,6 +8,11 @@ package fslt.lib.bitmap;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Build;
 import android.os.Environment;
 import android.preference.Preference;
 import android.util.DisplayMetrics;
@@ -15,7 +20,6 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 
 import fslt.lib.file.FileOperations;
 
@@ -29,6 +33,9 @@ public class BitmapFileOperations {
 	private Preference mPrefs;
 	private DisplayMetrics mDisplayMetrics;
 	private FileOperations mFileOperations; 
+	private BitmapMemoryCache mMemoryCache; 
+	private BitmapPool mBitmapPool; 
+	private final Paint mScalePaint = new Paint(Paint.FILTER_BITMAP_FLAG); 
 	
 	public BitmapFileOperations(Context context){
 		mCtx = context; 
@@ -36,6 +43,51 @@ public class BitmapFileOperations {
 		mDisplayMetrics = mCtx.getResources().getDisplayMetrics();
 		mFileOperations = new FileOperations(mCtx); 
 	}
+	/**
+	 * Set the in-memory cache consulted before decoding from storage, decoded 
+	 * bitmaps are added to it. Share one cache between BitmapFileOperations 
+	 * instances, null disables caching (the default). 
+	 * 
+	 * @param cache
+	 * 				e.g. BitmapMemoryCache.withHeapFraction(0.125f)
+	 */
+	public void setMemoryCache(BitmapMemoryCache cache){
+		mMemoryCache = cache; 
+	}
+	public BitmapMemoryCache getMemoryCache(){
+		return mMemoryCache; 
+	}
+	/**
+	 * Set the pool decodes take reusable bitmaps from (BitmapFactory.Options.inBitmap), 
+	 * null disables reuse (the default). With a pool set decoded bitmaps are mutable 
+	 * so they can be returned to the pool with releaseBitmap. 
+	 * 
+	 * @param pool
+	 * 				pool shared by every BitmapFileOperations instance, and usually 
+	 * 				the memory cache through BitmapMemoryCache.setBitmapPool
+	 */
+	public void setBitmapPool(BitmapPool pool){
+		mBitmapPool = pool; 
+	}
+	public BitmapPool getBitmapPool(){
+		return mBitmapPool; 
+	}
+	/**
+	 * Return a bitmap that is no longer drawn anywhere so its memory can be used 
+	 * by a later decode. Without a pool the bitmap is recycled. Do not release 
+	 * bitmaps held by the memory cache, the cache releases them on eviction. 
+	 * 
+	 * @param bmp
+	 * 				bitmap opened through this class that is no longer used
+	 */
+	public void releaseBitmap(Bitmap bmp){
+		if( bmp == null ) return; 
+		if( mBitmapPool != null ){
+			mBitmapPool.release(bmp); 
+		}else{
+			bmp.recycle(); 
+		}
+	}
 	/**
 	 * Open bitmap file from storage location 
 	 * 
@@ -58,35 +110,32 @@ public class BitmapFileOperations {
 	 */
 	public Bitmap openBitmapFromStorageLocation(int location, String fileName, 
 							boolean openWithScreenDpi) throws IOException{
-		File file = null;
-		InputStream inputStream = null; 
 		Bitmap bmp = null; 
-		inputStream = getBitmapInputStreamFromStorageLocation(location, fileName);
-		if( inputStream == null ) return null; 
+		if( mMemoryCache != null ){
+			bmp = mMemoryCache.get(location, fileName, 0, 0, openWithScreenDpi);
+			if( bmp != null ) return bmp; 
+		}
+		BitmapSource source = BitmapSource.open(mFileOperations, location, fileName);
+		if( source == null ) return null; 
 		BitmapFactory.Options options = getDefaultBitmapOptionsForScreenDpi(openWithScreenDpi);
-		bmp = BitmapFactory.decodeStream(inputStream, null, options);
 		try{
-			inputStream.close();
-		}catch(IOException e){
-			// hum
+			if( mBitmapPool != null ){
+				// the decoded size has to be known to pick a bitmap to reuse 
+				options.inJustDecodeBounds = true;
+				BitmapFactory.decodeStream(source.getInputStream(), null, options);
+				options.inJustDecodeBounds = false;
+				source.rewind(); 
+				bmp = decodeIntoPooledBitmap(source, options, options.outWidth, options.outHeight);
+			}else{
+				bmp = BitmapFactory.decodeStream(source.getInputStream(), null, options);
+			}
+		}finally{
+			source.close(); 
 		}
+		if( mMemoryCache != null ) mMemoryCache.put(location, fileName, 0, 0, openWithScreenDpi, bmp);
 		
 		return bmp;
 	}
-	/**
-	 * 
-	 * @param location
-	 * @param fileName
-	 * @return
-	 * @see openBitmapFromStorageLocation
-	 */
-	private InputStream getBitmapInputStreamFromStorageLocation(int location, String fileName){
-		InputStream inputStream = null; 
-
-		inputStream = mFileOperations.getInputStreamFromStorageLocation(location, fileName);
-		
-		return inputStream;
-	}
 	/**
 	 * Open bitmap file from storage location at size specified by input parameters  
 	 * 
@@ -112,26 +161,106 @@ public class BitmapFileOperations {
 	 */
 	public Bitmap openBitmapAtSizeFromStorageLocation(int location, String fileName, 
 				int width, int height, boolean openWithScreenDpi) throws IOException{
+		if( mMemoryCache != null ){
+			Bitmap cached = mMemoryCache.get(location, fileName, width, height, openWithScreenDpi);
+			if( cached != null ) return cached; 
+		}
 		
-		InputStream inputStream = getBitmapInputStreamFromStorageLocation(location, fileName);
-		
-		BitmapFactory.Options options = new BitmapFactory.Options();
-		//if(openWithScreenDpi) options = getDefaultBitmapOptionsForScreenDpi(openWithScreenDpi); 
-		options.inJustDecodeBounds = true;
+		// one open serves both the bounds decode and the sampled decode
+		BitmapSource source = BitmapSource.open(mFileOperations, location, fileName);
+		if( source == null ) return null; 
 		Bitmap bmp = null; 
-		bmp = BitmapFactory.decodeStream(inputStream, null, options); 
-		
-		int sampleSize = calculateInSampleSize(options, width, height);
-		if(openWithScreenDpi) options = getDefaultBitmapOptionsForScreenDpi(openWithScreenDpi);
-		options.inSampleSize = sampleSize; 
-		options.inJustDecodeBounds = false;
-		// sample the image to open as close to desired size as possible, this will 
-		// be significantly less memory usage when large image that you want to open
-		// at small size. 
-		inputStream = getBitmapInputStreamFromStorageLocation(location, fileName);
-		bmp = BitmapFactory.decodeStream(inputStream, null, options);
-		inputStream.close();
-		return Bitmap.createScaledBitmap(bmp, width, height, true);
+		try{
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			//if(openWithScreenDpi) options = getDefaultBitmapOptionsForScreenDpi(openWithScreenDpi); 
+			options.inJustDecodeBounds = true;
+			BitmapFactory.decodeStream(source.getInputStream(), null, options); 
+			
+			int sampleSize = calculateInSampleSize(options, width, height);
+			int srcWidth = options.outWidth; 
+			int srcHeight = options.outHeight; 
+			if(openWithScreenDpi) options = getDefaultBitmapOptionsForScreenDpi(openWithScreenDpi);
+			options.inSampleSize = sampleSize; 
+			options.inJustDecodeBounds = false;
+			// sample the image to open as close to desired size as possible, this will 
+			// be significantly less memory usage when large image that you want to open
+			// at small size. 
+			source.rewind(); 
+			if( mBitmapPool != null ){
+				bmp = decodeIntoPooledBitmap(source, options, srcWidth, srcHeight);
+			}else{
+				bmp = BitmapFactory.decodeStream(source.getInputStream(), null, options);
+			}
+		}finally{
+			source.close(); 
+		}
+		if( bmp == null ) return null; 
+		Bitmap scaled = scaleBitmap(bmp, width, height);
+		if( mMemoryCache != null ) mMemoryCache.put(location, fileName, width, height, openWithScreenDpi, scaled);
+		return scaled;
+	}
+	/**
+	 * Decode into a bitmap taken from the pool when one fits, otherwise into a 
+	 * new mutable bitmap. 
+	 * 
+	 * @param srcWidth
+	 * 				width of the encoded image, from a bounds decode 
+	 * @param srcHeight
+	 * 				height of the encoded image, from a bounds decode 
+	 */
+	private Bitmap decodeIntoPooledBitmap(BitmapSource source, BitmapFactory.Options options, 
+				int srcWidth, int srcHeight) throws IOException{
+		options.inMutable = true; 
+		options.inBitmap = null; 
+		if( srcWidth > 0 && srcHeight > 0 ){
+			// the decoder rounds inSampleSize down to a power of 2 
+			int sample = Math.max(1, Integer.highestOneBit(Math.max(1, options.inSampleSize)));
+			if( sample == 1 || Build.VERSION.SDK_INT >= 19 ){
+				options.inBitmap = mBitmapPool.get((srcWidth + sample - 1) / sample, 
+						(srcHeight + sample - 1) / sample, options.inPreferredConfig); 
+			}
+		}
+		Bitmap bmp = null; 
+		try{
+			bmp = BitmapFactory.decodeStream(source.getInputStream(), null, options);
+		}catch(IllegalArgumentException e){
+			// image could not be decoded into options.inBitmap, fall through
+		}
+		if( bmp == null && options.inBitmap != null ){
+			// hand the unused bitmap back and decode into a new one
+			mBitmapPool.release(options.inBitmap); 
+			options.inBitmap = null; 
+			source.rewind(); 
+			bmp = BitmapFactory.decodeStream(source.getInputStream(), null, options);
+		}
+		return bmp; 
+	}
+	/**
+	 * Scale src to width x height. The intermediate src bitmap is released, and 
+	 * with a pool set the scaled bitmap is drawn into a pooled bitmap when possible. 
+	 */
+	private Bitmap scaleBitmap(Bitmap src, int width, int height){
+		if( src.getWidth() == width && src.getHeight() == height ) return src; 
+		Bitmap scaled; 
+		if( mBitmapPool != null ){
+			scaled = mBitmapPool.get(width, height, Bitmap.Config.ARGB_8888); 
+			if( scaled == null ){
+				scaled = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888); 
+			}else{
+				if( scaled.getWidth() != width || scaled.getHeight() != height ){
+					// only handed out larger than needed from KitKat on 
+					scaled.reconfigure(width, height, Bitmap.Config.ARGB_8888); 
+				}
+				scaled.eraseColor(Color.TRANSPARENT); 
+			}
+			scaled.setDensity(src.getDensity()); 
+			Canvas canvas = new Canvas(scaled); 
+			canvas.drawBitmap(src, null, new Rect(0, 0, width, height), mScalePaint); 
+		}else{
+			scaled = Bitmap.createScaledBitmap(src, width, height, true);
+		}
+		releaseBitmap(src); 
+		return scaled; 
 	}
 	/**
 	 * Given actual image width/height in options and desired width/height
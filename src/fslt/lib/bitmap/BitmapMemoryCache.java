@@ -0,0 +1,183 @@
+/*
+ * Copyright 2013 StoryScape Project. All rights reserved.
+ *
+ *
+ */
+package fslt.lib.bitmap;
+
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+
+/**
+ * In-memory LRU cache of decoded bitmaps, bounded by the total number of bytes
+ * held ({@link Bitmap#getByteCount()}) rather than the number of entries.
+ * Bitmaps are keyed by how they were opened: storage location, file name,
+ * requested width and height (0 for natural size) and whether they were opened
+ * at screen dpi.
+ * <p>
+ * Bitmaps handed out by the cache are shared, callers must not recycle or
+ * modify them.
+ *
+ * @see BitmapFileOperations#setMemoryCache(BitmapMemoryCache)
+ */
+public class BitmapMemoryCache {
+
+	/**
+	 * Identifies a decoded bitmap by the arguments it was opened with.
+	 */
+	private static final class Key {
+		private final int location;
+		private final String fileName;
+		private final int width;
+		private final int height;
+		private final boolean atScreenDpi;
+		private final int hash;
+
+		Key(int location, String fileName, int width, int height, boolean atScreenDpi) {
+			this.location = location;
+			this.fileName = fileName;
+			this.width = width;
+			this.height = height;
+			this.atScreenDpi = atScreenDpi;
+			int h = location;
+			h = 31 * h + fileName.hashCode();
+			h = 31 * h + width;
+			h = 31 * h + height;
+			this.hash = 31 * h + (atScreenDpi ? 1 : 0);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o)
+				return true;
+			if (!(o instanceof Key))
+				return false;
+			Key other = (Key) o;
+			return location == other.location && width == other.width && height == other.height
+					&& atScreenDpi == other.atScreenDpi && fileName.equals(other.fileName);
+		}
+	}
+
+	private final LruCache<Key, Bitmap> mCache;
+	private volatile BitmapPool mBitmapPool;
+
+	/**
+	 * @param maxBytes
+	 *            maximum total byte count of the bitmaps held
+	 */
+	public BitmapMemoryCache(int maxBytes) {
+		mCache = new LruCache<Key, Bitmap>(maxBytes) {
+			@Override
+			protected int sizeOf(Key key, Bitmap bitmap) {
+				return bitmap.getByteCount();
+			}
+
+			@Override
+			protected void entryRemoved(boolean evicted, Key key, Bitmap oldValue, Bitmap newValue) {
+				onBitmapRemoved(evicted, oldValue);
+			}
+		};
+	}
+
+	/**
+	 * Create a cache sized as a fraction of the maximum heap available to the
+	 * application, e.g. 0.125f for one eighth of the heap.
+	 *
+	 * @param fraction
+	 *            value between 0 and 1
+	 */
+	public static BitmapMemoryCache withHeapFraction(float fraction) {
+		if (fraction <= 0 || fraction > 1) {
+			throw new IllegalArgumentException("fraction must be in (0, 1], was " + fraction);
+		}
+		long maxBytes = (long) (Runtime.getRuntime().maxMemory() * fraction);
+		return new BitmapMemoryCache((int) Math.min(Integer.MAX_VALUE, maxBytes));
+	}
+
+	/**
+	 * Release bitmaps evicted to make space into pool so their memory is reused
+	 * by the next decode. Only set a pool when nothing keeps drawing a bitmap
+	 * after it has been evicted, e.g. when views always get their bitmap from
+	 * the cache.
+	 */
+	public void setBitmapPool(BitmapPool pool) {
+		mBitmapPool = pool;
+	}
+
+	/**
+	 * Called whenever a bitmap leaves the cache, evicted bitmaps are released
+	 * into the bitmap pool if one is set.
+	 *
+	 * @param evicted
+	 *            true if removed to make space, false if removed or replaced
+	 */
+	protected void onBitmapRemoved(boolean evicted, Bitmap bitmap) {
+		BitmapPool pool = mBitmapPool;
+		if (evicted && pool != null) {
+			pool.release(bitmap);
+		}
+	}
+
+	/**
+	 * @return the cached bitmap or null, counts as a hit or miss
+	 */
+	public Bitmap get(int location, String fileName, int width, int height, boolean atScreenDpi) {
+		return mCache.get(new Key(location, fileName, width, height, atScreenDpi));
+	}
+
+	public void put(int location, String fileName, int width, int height, boolean atScreenDpi, Bitmap bitmap) {
+		if (bitmap == null)
+			return;
+		mCache.put(new Key(location, fileName, width, height, atScreenDpi), bitmap);
+	}
+
+	public void remove(int location, String fileName, int width, int height, boolean atScreenDpi) {
+		mCache.remove(new Key(location, fileName, width, height, atScreenDpi));
+	}
+
+	/**
+	 * Drop every cached bitmap, e.g. from onTrimMemory or when leaving a story.
+	 */
+	public void evictAll() {
+		mCache.evictAll();
+	}
+
+	/**
+	 * Shrink the cache to at most maxBytes, evicting least recently used
+	 * bitmaps first.
+	 */
+	public void trimToSize(int maxBytes) {
+		mCache.trimToSize(maxBytes);
+	}
+
+	/** @return total byte count of the bitmaps currently held */
+	public int sizeInBytes() {
+		return mCache.size();
+	}
+
+	public int maxSizeInBytes() {
+		return mCache.maxSize();
+	}
+
+	public int hitCount() {
+		return mCache.hitCount();
+	}
+
+	public int missCount() {
+		return mCache.missCount();
+	}
+
+	public int evictionCount() {
+		return mCache.evictionCount();
+	}
+
+	@Override
+	public String toString() {
+		return mCache.toString() + "[bytes=" + sizeInBytes() + "/" + maxSizeInBytes() + "]";
+	}
+}
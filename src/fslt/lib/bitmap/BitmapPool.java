@@ -0,0 +1,212 @@
+/*
+ * Copyright 2013 StoryScape Project. All rights reserved.
+ *
+ *
+ */
+package fslt.lib.bitmap;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * Pool of mutable bitmaps that are no longer displayed, handed back to
+ * BitmapFactory through BitmapFactory.Options.inBitmap so a decode writes into
+ * existing memory instead of allocating a new bitmap.
+ * <p>
+ * Bitmaps are bucketed by allocation size. Before KitKat a bitmap can only be
+ * reused for a decode of exactly the same width, height and config at
+ * inSampleSize 1, from KitKat on any bitmap at least as large as the decoded
+ * image can be reused. The pool holds at most maxBytes, releasing more
+ * recycles the oldest pooled bitmaps.
+ * <p>
+ * Only release a bitmap once nothing draws it anymore, its pixels will be
+ * overwritten by the next decode that reuses it.
+ *
+ * @see BitmapFileOperations#setBitmapPool(BitmapPool)
+ */
+public class BitmapPool {
+
+	// never hand out a bitmap more than this many times larger than needed
+	private static final int MAX_OVERSIZE_FACTOR = 2;
+	private static final boolean CAN_REUSE_LARGER = Build.VERSION.SDK_INT >= 19; // KITKAT
+
+	private final int mMaxBytes;
+	private final TreeMap<Integer, LinkedList<Bitmap>> mBuckets = new TreeMap<Integer, LinkedList<Bitmap>>();
+	// release order, the head is recycled first when the pool is full
+	private final LinkedList<Bitmap> mReleaseOrder = new LinkedList<Bitmap>();
+	private int mSize;
+
+	private int mRequestCount;
+	private int mReuseCount;
+	private int mReleaseCount;
+	private int mEvictionCount;
+	private long mBytesSaved;
+
+	/**
+	 * @param maxBytes
+	 *            maximum total allocation byte count of the pooled bitmaps
+	 */
+	public BitmapPool(int maxBytes) {
+		mMaxBytes = maxBytes;
+	}
+
+	/**
+	 * Find a pooled bitmap a decode of width x height in config can be written
+	 * into. The bitmap is removed from the pool.
+	 *
+	 * @return a reusable bitmap or null, counts as a request
+	 */
+	public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+		mRequestCount++;
+		int needed = width * height * bytesPerPixel(config);
+		Bitmap candidate = null;
+		if (CAN_REUSE_LARGER) {
+			Integer bucket = mBuckets.ceilingKey(needed);
+			if (bucket != null && bucket <= needed * MAX_OVERSIZE_FACTOR) {
+				candidate = mBuckets.get(bucket).getFirst();
+			}
+		} else {
+			LinkedList<Bitmap> bucket = mBuckets.get(needed);
+			if (bucket != null) {
+				for (Bitmap bitmap : bucket) {
+					if (bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config) {
+						candidate = bitmap;
+						break;
+					}
+				}
+			}
+		}
+		if (candidate == null) {
+			return null;
+		}
+		removeFromPool(candidate);
+		mReuseCount++;
+		mBytesSaved += needed;
+		return candidate;
+	}
+
+	/**
+	 * Return a bitmap that is no longer drawn so a later decode can reuse it.
+	 * Immutable or recycled bitmaps, and bitmaps bigger than the pool, are
+	 * recycled instead.
+	 */
+	public synchronized void release(Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled()) {
+			return;
+		}
+		int bytes = allocationByteCount(bitmap);
+		if (!bitmap.isMutable() || bytes > mMaxBytes) {
+			bitmap.recycle();
+			return;
+		}
+		if (mReleaseOrder.contains(bitmap)) {
+			return;
+		}
+		mReleaseCount++;
+		LinkedList<Bitmap> bucket = mBuckets.get(bytes);
+		if (bucket == null) {
+			bucket = new LinkedList<Bitmap>();
+			mBuckets.put(bytes, bucket);
+		}
+		bucket.add(bitmap);
+		mReleaseOrder.add(bitmap);
+		mSize += bytes;
+		trimToSize(mMaxBytes);
+	}
+
+	/**
+	 * Recycle pooled bitmaps, oldest first, until the pool holds at most
+	 * maxBytes. trimToSize(0) empties the pool.
+	 */
+	public synchronized void trimToSize(int maxBytes) {
+		while (mSize > maxBytes && !mReleaseOrder.isEmpty()) {
+			Bitmap oldest = mReleaseOrder.getFirst();
+			removeFromPool(oldest);
+			oldest.recycle();
+			mEvictionCount++;
+		}
+	}
+
+	public void clear() {
+		trimToSize(0);
+	}
+
+	private void removeFromPool(Bitmap bitmap) {
+		int bytes = allocationByteCount(bitmap);
+		LinkedList<Bitmap> bucket = mBuckets.get(bytes);
+		Iterator<Bitmap> it = bucket.iterator();
+		while (it.hasNext()) {
+			if (it.next() == bitmap) {
+				it.remove();
+				break;
+			}
+		}
+		if (bucket.isEmpty()) {
+			mBuckets.remove(bytes);
+		}
+		mReleaseOrder.remove(bitmap);
+		mSize -= bytes;
+	}
+
+	private static int allocationByteCount(Bitmap bitmap) {
+		if (CAN_REUSE_LARGER) {
+			return bitmap.getAllocationByteCount();
+		}
+		return bitmap.getByteCount();
+	}
+
+	private static int bytesPerPixel(Bitmap.Config config) {
+		if (config == Bitmap.Config.ALPHA_8) {
+			return 1;
+		} else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+			return 2;
+		}
+		return 4;
+	}
+
+	/** @return total allocation byte count of the pooled bitmaps */
+	public synchronized int sizeInBytes() {
+		return mSize;
+	}
+
+	public int maxSizeInBytes() {
+		return mMaxBytes;
+	}
+
+	public synchronized int requestCount() {
+		return mRequestCount;
+	}
+
+	public synchronized int reuseCount() {
+		return mReuseCount;
+	}
+
+	public synchronized int releaseCount() {
+		return mReleaseCount;
+	}
+
+	public synchronized int evictionCount() {
+		return mEvictionCount;
+	}
+
+	/** @return fraction of requests that were served from the pool */
+	public synchronized float reuseRate() {
+		return mRequestCount == 0 ? 0f : (float) mReuseCount / mRequestCount;
+	}
+
+	/** @return bytes of bitmap memory that did not have to be allocated */
+	public synchronized long bytesSaved() {
+		return mBytesSaved;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "BitmapPool[bytes=" + mSize + "/" + mMaxBytes + ",requests=" + mRequestCount + ",reused="
+				+ mReuseCount + ",evictions=" + mEvictionCount + ",bytesSaved=" + mBytesSaved + "]";
+	}
+}
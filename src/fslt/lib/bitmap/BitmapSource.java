@@ -0,0 +1,243 @@
+/*
+ * Copyright 2013 StoryScape Project. All rights reserved.
+ *
+ *
+ */
+package fslt.lib.bitmap;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import fslt.lib.file.FileOperations;
+
+/**
+ * Encoded image opened once and read several times, so a bounds decode
+ * (inJustDecodeBounds) and the sampled decode that follows share one open.
+ * Files are memory mapped and closed right away, assets rely on the
+ * AssetInputStream seeking on mark/reset, anything else is buffered.
+ * <p>
+ * BitmapFactory calls mark() on the streams it is given with a limit of about
+ * 1 KB. Buffered streams ignore those calls so the mark set at the start of
+ * the image survives the decode. Should rewinding fail anyway the stream is
+ * opened again.
+ */
+abstract class BitmapSource {
+
+	// generous since only the bytes read before rewind() are buffered
+	private static final int MARK_LIMIT = 8 * 1024 * 1024;
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	/**
+	 * @return stream positioned at the start of the image, or where the last
+	 *         decode stopped reading until rewind() is called
+	 */
+	abstract InputStream getInputStream();
+
+	/**
+	 * Position the stream back at the start of the image for another decode.
+	 */
+	abstract void rewind() throws IOException;
+
+	abstract void close();
+
+	/**
+	 * @return the opened source or null if fileName could not be opened
+	 */
+	static BitmapSource open(FileOperations fileOperations, int location, String fileName) {
+		File file = fileOperations.getFileFromStorageLocation(location, fileName);
+		if (file != null) {
+			try {
+				return new MappedFileSource(file);
+			} catch (IOException e) {
+				return null;
+			}
+		}
+		InputStream in = fileOperations.getInputStreamFromStorageLocation(location, fileName);
+		if (in == null) {
+			return null;
+		}
+		return new MarkedStreamSource(fileOperations, location, fileName, in);
+	}
+
+	private static class MappedFileSource extends BitmapSource {
+		private final ByteBufferInputStream mStream;
+
+		MappedFileSource(File file) throws IOException {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				FileChannel channel = in.getChannel();
+				// the mapping stays valid after the channel is closed
+				mStream = new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+			} finally {
+				in.close();
+			}
+		}
+
+		@Override
+		InputStream getInputStream() {
+			return mStream;
+		}
+
+		@Override
+		void rewind() {
+			mStream.rewind();
+		}
+
+		@Override
+		void close() {
+			// nothing open, the mapping is released with the buffer
+		}
+	}
+
+	private static class MarkedStreamSource extends BitmapSource {
+		private final FileOperations mFileOperations;
+		private final int mLocation;
+		private final String mFileName;
+		private InputStream mStream;
+
+		MarkedStreamSource(FileOperations fileOperations, int location, String fileName, InputStream in) {
+			mFileOperations = fileOperations;
+			mLocation = location;
+			mFileName = fileName;
+			mStream = marked(in);
+		}
+
+		private static InputStream marked(InputStream in) {
+			// AssetInputStream seeks back to the mark, whatever else is buffered
+			InputStream stream = in.markSupported() ? in : new PinnedMarkInputStream(in);
+			mark(stream);
+			return stream;
+		}
+
+		private static void mark(InputStream stream) {
+			if (stream instanceof PinnedMarkInputStream) {
+				((PinnedMarkInputStream) stream).pin();
+			} else {
+				stream.mark(MARK_LIMIT);
+			}
+		}
+
+		@Override
+		InputStream getInputStream() {
+			return mStream;
+		}
+
+		@Override
+		void rewind() throws IOException {
+			try {
+				mStream.reset();
+				mark(mStream);
+			} catch (IOException e) {
+				// read past MARK_LIMIT or the stream cannot reset, open again
+				close();
+				InputStream in = mFileOperations.getInputStreamFromStorageLocation(mLocation, mFileName);
+				if (in == null) {
+					throw new IOException("could not reopen " + mFileName);
+				}
+				mStream = marked(in);
+			}
+		}
+
+		@Override
+		void close() {
+			try {
+				mStream.close();
+			} catch (IOException e) {
+				// read only
+			}
+		}
+	}
+
+	/**
+	 * BufferedInputStream that keeps the mark set with pin(). The decoder's
+	 * mark() calls are ignored, its reset() calls go back to the pinned mark
+	 * at the start of the image, which is where every decode starts reading.
+	 */
+	private static class PinnedMarkInputStream extends BufferedInputStream {
+
+		PinnedMarkInputStream(InputStream in) {
+			super(in, BUFFER_SIZE);
+		}
+
+		void pin() {
+			super.mark(MARK_LIMIT);
+		}
+
+		@Override
+		public synchronized void mark(int readLimit) {
+			// keep our mark and its limit
+		}
+	}
+
+	/**
+	 * InputStream over a (memory mapped) ByteBuffer, mark/reset just move the
+	 * buffer position.
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer mBuffer;
+		private int mMark;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			mBuffer = buffer;
+		}
+
+		void rewind() {
+			mBuffer.position(0);
+			mMark = 0;
+		}
+
+		@Override
+		public int read() {
+			if (!mBuffer.hasRemaining()) {
+				return -1;
+			}
+			return mBuffer.get() & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) {
+			if (count == 0) {
+				return 0;
+			}
+			int remaining = mBuffer.remaining();
+			if (remaining == 0) {
+				return -1;
+			}
+			int read = Math.min(count, remaining);
+			mBuffer.get(buffer, offset, read);
+			return read;
+		}
+
+		@Override
+		public long skip(long count) {
+			int skipped = (int) Math.max(0, Math.min(count, mBuffer.remaining()));
+			mBuffer.position(mBuffer.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return mBuffer.remaining();
+		}
+
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+
+		@Override
+		public synchronized void mark(int readLimit) {
+			mMark = mBuffer.position();
+		}
+
+		@Override
+		public synchronized void reset() {
+			mBuffer.position(mMark);
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package fslt.lib.database;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Interning cache mapping action names to their action _id. Loaded once when
+ * the database is opened, after that resolving a known name never touches
+ * SQLite and is safe from any thread. The UNIQUE index on action_name keeps
+ * the table and the cache one row per name.
+ */
+class ActionNameCache {
+	private final String mTable;
+	private final String mIdColumn;
+	private final String mNameColumn;
+	private final ConcurrentHashMap<String, Long> mIds = new ConcurrentHashMap<String, Long>();
+
+	ActionNameCache(String table, String idColumn, String nameColumn) {
+		mTable = table;
+		mIdColumn = idColumn;
+		mNameColumn = nameColumn;
+	}
+
+	/**
+	 * Replace the cache content with every action in db.
+	 */
+	void load(SQLiteDatabase db) {
+		mIds.clear();
+		Cursor c = db.query(mTable, new String[] { mIdColumn, mNameColumn }, null, null, null, null, null);
+		try {
+			while (c.moveToNext()) {
+				if (!c.isNull(1)) {
+					mIds.put(c.getString(1), c.getLong(0));
+				}
+			}
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * @return the id of actionName or -1 if it has no row yet
+	 */
+	long get(String actionName) {
+		if (actionName == null) {
+			return -1;
+		}
+		Long id = mIds.get(actionName);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * @return the id of actionName, inserting a row for it the first time it
+	 *         is seen
+	 */
+	long resolve(SQLiteDatabase db, String actionName) {
+		if (actionName == null) {
+			throw new IllegalArgumentException("action name must not be null");
+		}
+		Long id = mIds.get(actionName);
+		if (id != null) {
+			return id;
+		}
+		synchronized (this) {
+			id = mIds.get(actionName);
+			if (id != null) {
+				return id;
+			}
+			// inserted behind the cache's back, e.g. by a migration
+			long rowId = -1;
+			Cursor c = db.query(mTable, new String[] { mIdColumn }, mNameColumn + " = ?",
+					new String[] { actionName }, null, null, null);
+			try {
+				if (c.moveToFirst()) {
+					rowId = c.getLong(0);
+				}
+			} finally {
+				c.close();
+			}
+			if (rowId == -1) {
+				ContentValues values = new ContentValues();
+				values.put(mNameColumn, actionName);
+				rowId = db.insert(mTable, null, values);
+			}
+			if (rowId != -1) {
+				mIds.put(actionName, rowId);
+			}
+			return rowId;
+		}
+	}
+
+	void clear() {
+		mIds.clear();
+	}
+}
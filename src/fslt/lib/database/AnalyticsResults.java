@@ -0,0 +1,97 @@
+package fslt.lib.database;
+
+/**
+ * Result pages returned by the DatabaseHelper analytics queries. Each result
+ * holds one page of rows in parallel primitive arrays, index i of every array
+ * is row i. Pass getNextOffset() back to the query for the following page.
+ */
+public class AnalyticsResults {
+
+	/**
+	 * Paging information shared by every result.
+	 */
+	public static abstract class Page {
+		private final int offset;
+		int size;
+		boolean hasMore;
+
+		Page(int offset) {
+			this.offset = offset;
+		}
+
+		/** @return number of rows in this page */
+		public int size() {
+			return size;
+		}
+
+		/** @return offset of the first row of this page */
+		public int getOffset() {
+			return offset;
+		}
+
+		/** @return offset of the first row of the next page */
+		public int getNextOffset() {
+			return offset + size;
+		}
+
+		/** @return true if there are rows after this page */
+		public boolean hasMore() {
+			return hasMore;
+		}
+	}
+
+	/**
+	 * Time spent reading each story, summed over its pages that have an end
+	 * time.
+	 */
+	public static class StoryDwellTimes extends Page {
+		public final long[] storyIds;
+		public final String[] titles;
+		public final long[] dwellMillis;
+		public final int[] pageViews;
+
+		StoryDwellTimes(int offset, int capacity) {
+			super(offset);
+			storyIds = new long[capacity];
+			titles = new String[capacity];
+			dwellMillis = new long[capacity];
+			pageViews = new int[capacity];
+		}
+	}
+
+	/**
+	 * Number of interactions logged on each page.
+	 */
+	public static class PageInteractionCounts extends Page {
+		public final long[] pageIds;
+		public final long[] storyIds;
+		public final int[] pageNumbers;
+		public final int[] interactionCounts;
+
+		PageInteractionCounts(int offset, int capacity) {
+			super(offset);
+			pageIds = new long[capacity];
+			storyIds = new long[capacity];
+			pageNumbers = new int[capacity];
+			interactionCounts = new int[capacity];
+		}
+	}
+
+	/**
+	 * How often each action was triggered on each media, most frequent first.
+	 */
+	public static class ActionFrequencies extends Page {
+		public final String[] mediaNames;
+		public final long[] actionIds;
+		public final String[] actionNames;
+		public final int[] counts;
+
+		ActionFrequencies(int offset, int capacity) {
+			super(offset);
+			mediaNames = new String[capacity];
+			actionIds = new long[capacity];
+			actionNames = new String[capacity];
+			counts = new int[capacity];
+		}
+	}
+}
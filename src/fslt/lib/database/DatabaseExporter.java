@@ -0,0 +1,278 @@
+package fslt.lib.database;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.GZIPOutputStream;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Streams the story, page, interaction and action tables to any OutputStream
+ * as gzip compressed CSV or JSON lines, with constant memory. Rows are read
+ * in windows keyed on _id, so no cursor ever holds more than WINDOW_SIZE rows.
+ * <p>
+ * Every export is bounded by the highest _id of each table when it starts, so
+ * rows logged while exporting go into the next export. Passing the returned
+ * Checkpoint to the next export only moves rows inserted since then, which is
+ * what a nightly sync wants. Note that updates to rows already exported, such
+ * as a page end_time set later, are not picked up by incremental exports.
+ *
+ * <pre>
+ * DatabaseExporter exporter = new DatabaseExporter(databaseHelper);
+ * Checkpoint since = Checkpoint.parse(prefs.getString("last_export", null));
+ * Checkpoint next = exporter.export(out, DatabaseExporter.FORMAT_JSON_LINES, since);
+ * prefs.edit().putString("last_export", next.toString()).commit();
+ * </pre>
+ */
+public class DatabaseExporter {
+	private static final String TAG = DatabaseExporter.class.getSimpleName();
+
+	public static final int FORMAT_CSV = 0;
+	public static final int FORMAT_JSON_LINES = 1;
+
+	private static final int WINDOW_SIZE = 500;
+	private static final int BUFFER_SIZE = 8 * 1024;
+	private static final String[] TABLES = { DatabaseHelper.TABLE_STORY, DatabaseHelper.TABLE_PAGE,
+			DatabaseHelper.TABLE_INTERACTION, DatabaseHelper.TABLE_ACTION };
+
+	/**
+	 * Highest _id exported from each table, in the order story, page,
+	 * interaction, action.
+	 */
+	public static class Checkpoint {
+		public static final Checkpoint NONE = new Checkpoint(new long[TABLES.length]);
+
+		private final long[] lastIds;
+
+		private Checkpoint(long[] lastIds) {
+			this.lastIds = lastIds;
+		}
+
+		public long getLastId(int tableIndex) {
+			return lastIds[tableIndex];
+		}
+
+		/**
+		 * @param value
+		 *            a previous toString(), null or empty for a full export
+		 */
+		public static Checkpoint parse(String value) {
+			if (value == null || value.length() == 0) {
+				return NONE;
+			}
+			String[] parts = value.split(",");
+			if (parts.length != TABLES.length) {
+				throw new IllegalArgumentException("not an export checkpoint: " + value);
+			}
+			long[] lastIds = new long[TABLES.length];
+			for (int i = 0; i < parts.length; i++) {
+				lastIds[i] = Long.parseLong(parts[i].trim());
+			}
+			return new Checkpoint(lastIds);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			for (int i = 0; i < lastIds.length; i++) {
+				if (i > 0)
+					builder.append(',');
+				builder.append(lastIds[i]);
+			}
+			return builder.toString();
+		}
+	}
+
+	private final DatabaseHelper mHelper;
+
+	public DatabaseExporter(DatabaseHelper helper) {
+		mHelper = helper;
+	}
+
+	/**
+	 * Export rows added after since to out, gzip compressed. out is finished
+	 * but not closed.
+	 *
+	 * @param format
+	 *            FORMAT_CSV or FORMAT_JSON_LINES
+	 * @param since
+	 *            Checkpoint.NONE for everything, or the result of the previous
+	 *            export
+	 * @return checkpoint to pass to the next incremental export
+	 */
+	public Checkpoint export(OutputStream out, int format, Checkpoint since) throws IOException {
+		SQLiteDatabase db = mHelper.getReadableDatabase();
+		long[] upTo = new long[TABLES.length];
+		for (int t = 0; t < TABLES.length; t++) {
+			upTo[t] = Math.max(since.lastIds[t], maxId(db, TABLES[t]));
+		}
+		GZIPOutputStream gzip = new GZIPOutputStream(out, BUFFER_SIZE);
+		Writer writer = new BufferedWriter(new OutputStreamWriter(gzip, "UTF-8"), BUFFER_SIZE);
+		int rows = 0;
+		for (int t = 0; t < TABLES.length; t++) {
+			rows += exportTable(db, writer, format, TABLES[t], since.lastIds[t], upTo[t]);
+		}
+		writer.flush();
+		gzip.finish();
+		Log.d(TAG, "exported " + rows + " rows");
+		return new Checkpoint(upTo);
+	}
+
+	private static long maxId(SQLiteDatabase db, String table) {
+		Cursor c = db.rawQuery("SELECT MAX(" + DatabaseHelper.ID + ") FROM " + table, null);
+		try {
+			return c.moveToFirst() ? c.getLong(0) : 0;
+		} finally {
+			c.close();
+		}
+	}
+
+	private static int exportTable(SQLiteDatabase db, Writer writer, int format, String table, long afterId,
+			long upToId) throws IOException {
+		String sql = "SELECT * FROM " + table + " WHERE " + DatabaseHelper.ID + " > ? AND " + DatabaseHelper.ID
+				+ " <= ? ORDER BY " + DatabaseHelper.ID + " LIMIT " + WINDOW_SIZE;
+		String[] args = new String[2];
+		args[1] = Long.toString(upToId);
+		long lastId = afterId;
+		int rows = 0;
+		boolean headerWritten = false;
+		while (lastId < upToId) {
+			args[0] = Long.toString(lastId);
+			Cursor c = db.rawQuery(sql, args);
+			try {
+				if (c.getCount() == 0) {
+					break;
+				}
+				String[] columns = c.getColumnNames();
+				int idColumn = c.getColumnIndex(DatabaseHelper.ID);
+				if (format == FORMAT_CSV && !headerWritten) {
+					writeCsvHeader(writer, table, columns);
+					headerWritten = true;
+				}
+				while (c.moveToNext()) {
+					if (format == FORMAT_CSV) {
+						writeCsvRow(writer, table, columns, c);
+					} else {
+						writeJsonRow(writer, table, columns, c);
+					}
+					lastId = c.getLong(idColumn);
+					rows++;
+				}
+			} finally {
+				c.close();
+			}
+		}
+		return rows;
+	}
+
+	/*
+	 * CSV: every line starts with the table name, each table is preceded by
+	 * a header line whose first field is "table".
+	 */
+	private static void writeCsvHeader(Writer writer, String table, String[] columns) throws IOException {
+		writer.write("table");
+		for (String column : columns) {
+			writer.write(',');
+			writeCsvField(writer, column);
+		}
+		writer.write('\n');
+	}
+
+	private static void writeCsvRow(Writer writer, String table, String[] columns, Cursor c) throws IOException {
+		writer.write(table);
+		for (int i = 0; i < columns.length; i++) {
+			writer.write(',');
+			int type = c.getType(i);
+			if (type == Cursor.FIELD_TYPE_NULL) {
+				continue;
+			} else if (type == Cursor.FIELD_TYPE_INTEGER) {
+				writer.write(Long.toString(c.getLong(i)));
+			} else if (type == Cursor.FIELD_TYPE_FLOAT) {
+				writer.write(Double.toString(c.getDouble(i)));
+			} else {
+				writeCsvField(writer, c.getString(i));
+			}
+		}
+		writer.write('\n');
+	}
+
+	private static void writeCsvField(Writer writer, String value) throws IOException {
+		boolean quote = false;
+		for (int i = 0; i < value.length() && !quote; i++) {
+			char ch = value.charAt(i);
+			quote = ch == ',' || ch == '"' || ch == '\n' || ch == '\r';
+		}
+		if (!quote) {
+			writer.write(value);
+			return;
+		}
+		writer.write('"');
+		for (int i = 0; i < value.length(); i++) {
+			char ch = value.charAt(i);
+			if (ch == '"')
+				writer.write('"');
+			writer.write(ch);
+		}
+		writer.write('"');
+	}
+
+	/*
+	 * JSON lines: one object per row, the table name under "table".
+	 */
+	private static void writeJsonRow(Writer writer, String table, String[] columns, Cursor c) throws IOException {
+		writer.write("{\"table\":");
+		writeJsonString(writer, table);
+		for (int i = 0; i < columns.length; i++) {
+			writer.write(',');
+			writeJsonString(writer, columns[i]);
+			writer.write(':');
+			int type = c.getType(i);
+			if (type == Cursor.FIELD_TYPE_NULL) {
+				writer.write("null");
+			} else if (type == Cursor.FIELD_TYPE_INTEGER) {
+				writer.write(Long.toString(c.getLong(i)));
+			} else if (type == Cursor.FIELD_TYPE_FLOAT) {
+				writer.write(Double.toString(c.getDouble(i)));
+			} else {
+				writeJsonString(writer, c.getString(i));
+			}
+		}
+		writer.write("}\n");
+	}
+
+	private static void writeJsonString(Writer writer, String value) throws IOException {
+		writer.write('"');
+		for (int i = 0; i < value.length(); i++) {
+			char ch = value.charAt(i);
+			switch (ch) {
+			case '"':
+				writer.write("\\\"");
+				break;
+			case '\\':
+				writer.write("\\\\");
+				break;
+			case '\n':
+				writer.write("\\n");
+				break;
+			case '\r':
+				writer.write("\\r");
+				break;
+			case '\t':
+				writer.write("\\t");
+				break;
+			default:
+				if (ch < 0x20) {
+					writer.write(String.format("\\u%04x", (int) ch));
+				} else {
+					writer.write(ch);
+				}
+			}
+		}
+		writer.write('"');
+	}
+}
@@ -16,6 +16,7 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDatabase.CursorFactory;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.os.Environment;
 import android.util.Log;
 
@@ -23,17 +24,20 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 	//Logcat tag
 	private static final String TAG = DatabaseHelper.class.getSimpleName();
 	// Database Version	
-	private static final int DATABASE_VERSION = 1;
+	// 1: initial schema
+	// 2: indexes on page(story_id, page_number), interaction(page_id) and interaction(action_id)
+	// 3: action_name unique, duplicate actions merged
+	private static final int DATABASE_VERSION = 3;
 	// Database Name
 	private static final String DATABASE_NAME = "storyscape_database";
-	//Tables
-	private static final String TABLE_STORY = "story";
-	private static final String TABLE_PAGE = "page"; 
-	private static final String TABLE_INTERACTION = "interaction"; 
-	private static final String TABLE_ACTION = "action"; 
+	//Tables (package visible for DatabaseExporter)
+	static final String TABLE_STORY = "story";
+	static final String TABLE_PAGE = "page"; 
+	static final String TABLE_INTERACTION = "interaction"; 
+	static final String TABLE_ACTION = "action"; 
 
 	//Common column names 
-	private static final String ID = "_id";
+	static final String ID = "_id";
 	private static final String START_TIME = "start_time";
 	private static final String END_TIME = "end_time";
 	//Story column names
@@ -75,17 +79,67 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 			+ TABLE_ACTION + "(" + ID + " INTEGER PRIMARY KEY," 
 			+ ACTION_NAME + " TEXT" + ")";
 
+	// Indexes, added in version 2
+	private static final String CREATE_INDEX_PAGE_STORY_PAGE_NUMBER = "CREATE INDEX IF NOT EXISTS "
+			+ "page_story_id_page_number_idx ON " + TABLE_PAGE + "(" + STORY_ID + "," + PAGE_NUMBER + ")";
+	private static final String CREATE_INDEX_INTERACTION_PAGE = "CREATE INDEX IF NOT EXISTS "
+			+ "interaction_page_id_idx ON " + TABLE_INTERACTION + "(" + PAGE_ID + ")";
+	private static final String CREATE_INDEX_INTERACTION_ACTION = "CREATE INDEX IF NOT EXISTS "
+			+ "interaction_action_id_idx ON " + TABLE_INTERACTION + "(" + ACTION_ID + ")";
+
+	// Version 3, one action row per action_name
+	private static final String MERGE_DUPLICATE_ACTION_IDS = "UPDATE " + TABLE_INTERACTION + " SET " 
+			+ ACTION_ID + " = (SELECT MIN(b." + ID + ") FROM " + TABLE_ACTION + " a JOIN " + TABLE_ACTION 
+			+ " b ON b." + ACTION_NAME + " = a." + ACTION_NAME + " WHERE a." + ID + " = " + TABLE_INTERACTION 
+			+ "." + ACTION_ID + ") WHERE " + ACTION_ID + " IN (SELECT " + ID + " FROM " + TABLE_ACTION 
+			+ " WHERE " + ACTION_NAME + " IS NOT NULL)";
+	private static final String DELETE_DUPLICATE_ACTIONS = "DELETE FROM " + TABLE_ACTION + " WHERE " + ID 
+			+ " NOT IN (SELECT MIN(" + ID + ") FROM " + TABLE_ACTION + " GROUP BY " + ACTION_NAME + ")"
+			+ " AND " + ACTION_NAME + " IS NOT NULL";
+	private static final String CREATE_INDEX_ACTION_NAME = "CREATE UNIQUE INDEX IF NOT EXISTS "
+			+ "action_action_name_idx ON " + TABLE_ACTION + "(" + ACTION_NAME + ")";
+
+	// Interaction insert compiled once by InteractionWriteQueue
+	static final String INSERT_INTERACTION = "INSERT INTO " + TABLE_INTERACTION 
+			+ "(" + PAGE_ID + "," + MEDIA_NAME + "," + ACTION_ID + "," + START_TIME 
+			+ ") VALUES (?,?,?,?)";
+
 	private Context mCtx; 
+	private InteractionWriteQueue mInteractionQueue; 
+	private final ActionNameCache mActionNames = new ActionNameCache(TABLE_ACTION, ID, ACTION_NAME); 
 
 	public DatabaseHelper(Context context) {
 		super(context, DATABASE_NAME, null, DATABASE_VERSION);
 		mCtx = context; 
+		configureWriteAheadLogging(); 
 	}
 
 	public DatabaseHelper(Context context, String name, CursorFactory factory,
 			int version) {
 		super(context, DATABASE_NAME, null, DATABASE_VERSION);
 		mCtx = context;
+		configureWriteAheadLogging(); 
+	}
+
+	/*
+	 * Write-ahead logging lets the interaction logging thread write while
+	 * the UI reads, and commits without rewriting the main database file.
+	 */
+	private void configureWriteAheadLogging(){
+		if( Build.VERSION.SDK_INT >= 16 ){
+			setWriteAheadLoggingEnabled(true); 
+		}
+	}
+
+	@Override
+	public void onOpen(SQLiteDatabase db) {
+		super.onOpen(db);
+		// before Jelly Bean WAL can only be switched on once the database is open 
+		if( Build.VERSION.SDK_INT < 16 && !db.isReadOnly() ){
+			db.enableWriteAheadLogging(); 
+		}
+		// action names are resolved from memory from now on 
+		mActionNames.load(db); 
 	}
 
 	@Override
@@ -95,17 +149,32 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 		db.execSQL(CREATE_TABLE_PAGE);
 		db.execSQL(CREATE_TABLE_INTERACTION);
 		db.execSQL(CREATE_TABLE_ACTIONS);
+		// bring the version 1 schema up to date
+		onUpgrade(db, 1, DATABASE_VERSION); 
 	}
 
+	/*
+	 * Migrate one version at a time so a database at any old version reaches 
+	 * the current schema without losing rows. Add a case per new version. 
+	 */
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		// on upgrade drop older tables
-		db.execSQL("DROP TABLE IF EXISTS " + CREATE_TABLE_STORY);
-		db.execSQL("DROP TABLE IF EXISTS " + CREATE_TABLE_PAGE);
-		db.execSQL("DROP TABLE IF EXISTS " + CREATE_TABLE_INTERACTION);
-		db.execSQL("DROP TABLE IF EXISTS " + CREATE_TABLE_ACTIONS);
-		// create new tables
-		onCreate(db);
+		for( int version = oldVersion + 1; version <= newVersion; version++ ){
+			switch( version ){
+			case 2: 
+				db.execSQL(CREATE_INDEX_PAGE_STORY_PAGE_NUMBER);
+				db.execSQL(CREATE_INDEX_INTERACTION_PAGE);
+				db.execSQL(CREATE_INDEX_INTERACTION_ACTION);
+				break; 
+			case 3: 
+				db.execSQL(MERGE_DUPLICATE_ACTION_IDS);
+				db.execSQL(DELETE_DUPLICATE_ACTIONS);
+				db.execSQL(CREATE_INDEX_ACTION_NAME);
+				break; 
+			default: 
+				Log.w(TAG, "no migration to version " + version); 
+			}
+		}
 	}
 
 	/*
@@ -152,13 +221,16 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
 		Cursor c = db.query(TABLE_PAGE, tableColumns, whereClause, whereArgs,
 				null, null, orderBy);
-		long rtn; 
-		if(c.moveToFirst()){
-			int index = c.getColumnIndex(ID); 
-			rtn = c.getLong(index); 
-			return rtn;
+		long rtn = -1; 
+		try{
+			if(c.moveToFirst()){
+				int index = c.getColumnIndex(ID); 
+				rtn = c.getLong(index); 
+			}
+		}finally{
+			c.close(); 
 		}
-		return -1;
+		return rtn;
 	}
 	public int setPageEndTime(long pageId){
 		SQLiteDatabase db = this.getWritableDatabase();
@@ -187,20 +259,208 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 		long interaction_id = db.insert(TABLE_INTERACTION, null, values);
 		return interaction_id;
 	}
+	/**
+	 * Write interactions logged through logInteraction in the background, 
+	 * batched into one transaction per flush instead of one per row. 
+	 * 
+	 * @param maxLatencyMs
+	 * 				longest time a logged interaction waits before it is written
+	 * @param maxBatchSize
+	 * 				number of pending interactions that triggers a write
+	 * @return the queue, also flushed and closed by closeDB
+	 */
+	public InteractionWriteQueue enableBatchedInteractions(long maxLatencyMs, int maxBatchSize){
+		InteractionWriteQueue queue = new InteractionWriteQueue(this, maxLatencyMs, maxBatchSize); 
+		InteractionWriteQueue previous; 
+		synchronized(this){
+			previous = mInteractionQueue; 
+			mInteractionQueue = queue; 
+		}
+		// closed outside the lock, a flush needs it for getWritableDatabase 
+		if( previous != null ) previous.close(); 
+		return queue; 
+	}
+	/**
+	 * Log an interaction, through the write-behind queue if batching is enabled
+	 * or straight away with createInteraction otherwise. 
+	 */
+	public void logInteraction(InteractionModel interaction){
+		// queued under the lock closeDB takes to detach the queue, so the 
+		// queue is never closed between being read and being logged to; 
+		// log() only appends in memory 
+		synchronized(this){
+			if( mInteractionQueue != null ){
+				mInteractionQueue.log(interaction); 
+				return; 
+			}
+		}
+		createInteraction(interaction); 
+	}
+	/**
+	 * Write any interactions still pending in the write-behind queue. 
+	 */
+	public void flushInteractions(){
+		InteractionWriteQueue queue; 
+		synchronized(this){
+			queue = mInteractionQueue; 
+		}
+		if( queue != null ) queue.flush(); 
+	}
 	/*
 	* Creating a action
 	*/
 	public long createAction(ActionModel action) {
-		SQLiteDatabase db = this.getWritableDatabase();
+		String actionName = action.getActionName(); 
+		if( actionName == null ){
+			// unnamed actions are not interned, each gets a row of its own as before 
+			SQLiteDatabase db = this.getWritableDatabase();
+			ContentValues values = new ContentValues();
+			values.putNull(ACTION_NAME);
+			return db.insert(TABLE_ACTION, null, values);
+		}
+		// one row per action name, an existing action returns its id 
+		return getActionId(actionName); 
+	}
+	/**
+	 * Resolve an action name to its action _id, creating the action the first
+	 * time the name is seen. Known names are answered from memory without 
+	 * touching SQLite, from any thread. 
+	 * 
+	 * @param actionName
+	 * 				non null action name
+	 * @return action _id or -1 if the action could not be created
+	 */
+	public long getActionId(String actionName){
+		long id = mActionNames.get(actionName); 
+		if( id != -1 ) return id; 
+		return mActionNames.resolve(this.getWritableDatabase(), actionName); 
+	}
+	/**
+	 * Log an interaction by action name instead of action id, see 
+	 * logInteraction(InteractionModel). 
+	 */
+	public void logInteraction(long pageId, String mediaName, String actionName){
+		long actionId = getActionId(actionName); 
+		synchronized(this){
+			if( mInteractionQueue != null ){
+				mInteractionQueue.log(pageId, mediaName, actionId); 
+				return; 
+			}
+		}
+		createInteraction(new InteractionModel(pageId, mediaName, actionId)); 
+	}
 
-		ContentValues values = new ContentValues();
-		values.put(ACTION_NAME, action.getActionName() );
-		// insert row
-		long action_id = db.insert(TABLE_ACTION, null, values);
+	/*
+	 * Analytics queries. Aggregation is done by SQLite, only one page of 
+	 * result rows crosses into Java. Pass a negative storyId for all stories. 
+	 */
 
-		return action_id;
+	/**
+	 * Time spent in each story, the sum of end_time - start_time over its 
+	 * pages that have been closed with setPageEndTime. 
+	 * 
+	 * @param offset
+	 * 				first row to return, 0 or a previous getNextOffset()
+	 * @param limit
+	 * 				maximum number of rows to return
+	 */
+	public AnalyticsResults.StoryDwellTimes getStoryDwellTimes(int offset, int limit){
+		String sql = "SELECT s." + ID + ", s." + STORY_TITLE 
+				+ ", TOTAL(p." + END_TIME + " - p." + START_TIME + "), COUNT(p." + ID + ")"
+				+ " FROM " + TABLE_STORY + " s LEFT JOIN " + TABLE_PAGE + " p ON p." + STORY_ID + " = s." + ID 
+				+ " AND p." + END_TIME + " IS NOT NULL"
+				+ " GROUP BY s." + ID + " ORDER BY s." + ID 
+				+ " LIMIT ? OFFSET ?"; 
+		Cursor c = this.getReadableDatabase().rawQuery(sql, pagingArgs(null, offset, limit)); 
+		AnalyticsResults.StoryDwellTimes result = new AnalyticsResults.StoryDwellTimes(offset, Math.min(limit, c.getCount())); 
+		try{
+			int i = 0; 
+			while( i < limit && c.moveToNext() ){
+				result.storyIds[i] = c.getLong(0); 
+				result.titles[i] = c.getString(1); 
+				result.dwellMillis[i] = c.getLong(2); 
+				result.pageViews[i] = c.getInt(3); 
+				i++; 
+			}
+			result.size = i; 
+			result.hasMore = c.getCount() > limit; 
+		}finally{
+			c.close(); 
+		}
+		return result; 
 	}
 
+	/**
+	 * Number of interactions logged on each page, pages without interactions
+	 * included. 
+	 */
+	public AnalyticsResults.PageInteractionCounts getInteractionCountsPerPage(long storyId, int offset, int limit){
+		String sql = "SELECT p." + ID + ", p." + STORY_ID + ", p." + PAGE_NUMBER + ", COUNT(i." + ID + ")"
+				+ " FROM " + TABLE_PAGE + " p LEFT JOIN " + TABLE_INTERACTION + " i ON i." + PAGE_ID + " = p." + ID 
+				+ (storyId >= 0 ? " WHERE p." + STORY_ID + " = ?" : "")
+				+ " GROUP BY p." + ID + " ORDER BY p." + ID 
+				+ " LIMIT ? OFFSET ?"; 
+		Cursor c = this.getReadableDatabase().rawQuery(sql, pagingArgs(storyId >= 0 ? Long.toString(storyId) : null, offset, limit)); 
+		AnalyticsResults.PageInteractionCounts result = new AnalyticsResults.PageInteractionCounts(offset, Math.min(limit, c.getCount())); 
+		try{
+			int i = 0; 
+			while( i < limit && c.moveToNext() ){
+				result.pageIds[i] = c.getLong(0); 
+				result.storyIds[i] = c.getLong(1); 
+				result.pageNumbers[i] = c.getInt(2); 
+				result.interactionCounts[i] = c.getInt(3); 
+				i++; 
+			}
+			result.size = i; 
+			result.hasMore = c.getCount() > limit; 
+		}finally{
+			c.close(); 
+		}
+		return result; 
+	}
+
+	/**
+	 * How often each action was triggered on each media_name, most frequent first.
+	 */
+	public AnalyticsResults.ActionFrequencies getActionFrequenciesByMedia(long storyId, int offset, int limit){
+		String sql = "SELECT i." + MEDIA_NAME + ", i." + ACTION_ID + ", a." + ACTION_NAME + ", COUNT(*) AS n"
+				+ " FROM " + TABLE_INTERACTION + " i LEFT JOIN " + TABLE_ACTION + " a ON a." + ID + " = i." + ACTION_ID 
+				+ (storyId >= 0 ? " JOIN " + TABLE_PAGE + " p ON p." + ID + " = i." + PAGE_ID + " WHERE p." + STORY_ID + " = ?" : "")
+				+ " GROUP BY i." + MEDIA_NAME + ", i." + ACTION_ID 
+				+ " ORDER BY n DESC, i." + MEDIA_NAME 
+				+ " LIMIT ? OFFSET ?"; 
+		Cursor c = this.getReadableDatabase().rawQuery(sql, pagingArgs(storyId >= 0 ? Long.toString(storyId) : null, offset, limit)); 
+		AnalyticsResults.ActionFrequencies result = new AnalyticsResults.ActionFrequencies(offset, Math.min(limit, c.getCount())); 
+		try{
+			int i = 0; 
+			while( i < limit && c.moveToNext() ){
+				result.mediaNames[i] = c.getString(0); 
+				result.actionIds[i] = c.getLong(1); 
+				result.actionNames[i] = c.getString(2); 
+				result.counts[i] = c.getInt(3); 
+				i++; 
+			}
+			result.size = i; 
+			result.hasMore = c.getCount() > limit; 
+		}finally{
+			c.close(); 
+		}
+		return result; 
+	}
+
+	/*
+	 * Selection args ending in LIMIT and OFFSET, one extra row is asked for 
+	 * to know whether there is a next page. 
+	 */
+	private static String[] pagingArgs(String firstArg, int offset, int limit){
+		String limitArg = Integer.toString(limit + 1); 
+		String offsetArg = Integer.toString(offset); 
+		if( firstArg == null ) return new String[] { limitArg, offsetArg }; 
+		return new String[] { firstArg, limitArg, offsetArg }; 
+	}
+
+	// Raw copy of the open database file, see DatabaseExporter for a 
+	// consistent streaming export
 	public void dumpDatabase(){
 		SQLiteDatabase db = this.getReadableDatabase();
 		File dbFile = mCtx.getDatabasePath(DATABASE_NAME);
@@ -232,6 +492,13 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
 	// closing database
 	public void closeDB() {
+		InteractionWriteQueue queue; 
+		synchronized(this){
+			queue = mInteractionQueue; 
+			mInteractionQueue = null; 
+		}
+		// flush-on-close, nothing logged is lost 
+		if( queue != null ) queue.close(); 
 		SQLiteDatabase db = this.getReadableDatabase();
 		if (db != null && db.isOpen())
 			db.close();
@@ -0,0 +1,225 @@
+package fslt.lib.database;
+
+import java.util.Arrays;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Write-behind queue for interaction rows. Interactions are timestamped when
+ * they are logged and written on a background thread, many at a time in one
+ * transaction through a single compiled INSERT statement, instead of one
+ * implicit transaction (and fsync) per row.
+ * <p>
+ * A batch is written once maxBatchSize interactions are pending or
+ * maxLatencyMs after the first pending interaction was logged, whichever
+ * comes first. close() writes whatever is still pending.
+ *
+ * @see DatabaseHelper#enableBatchedInteractions(long, int)
+ */
+public class InteractionWriteQueue {
+	private static final String TAG = InteractionWriteQueue.class.getSimpleName();
+
+	/**
+	 * Pending interactions as parallel primitive arrays, grown if logging
+	 * outpaces a flush.
+	 */
+	private static class Batch {
+		long[] pageIds;
+		String[] mediaNames;
+		long[] actionIds;
+		long[] startTimes;
+		int count;
+
+		Batch(int capacity) {
+			pageIds = new long[capacity];
+			mediaNames = new String[capacity];
+			actionIds = new long[capacity];
+			startTimes = new long[capacity];
+		}
+
+		void add(long pageId, String mediaName, long actionId, long startTime) {
+			if (count == pageIds.length) {
+				int capacity = count * 2;
+				pageIds = Arrays.copyOf(pageIds, capacity);
+				mediaNames = Arrays.copyOf(mediaNames, capacity);
+				actionIds = Arrays.copyOf(actionIds, capacity);
+				startTimes = Arrays.copyOf(startTimes, capacity);
+			}
+			pageIds[count] = pageId;
+			mediaNames[count] = mediaName;
+			actionIds[count] = actionId;
+			startTimes[count] = startTime;
+			count++;
+		}
+
+		void clear() {
+			Arrays.fill(mediaNames, 0, count, null);
+			count = 0;
+		}
+	}
+
+	private final DatabaseHelper mHelper;
+	private final long mMaxLatencyMs;
+	private final int mMaxBatchSize;
+	private final HandlerThread mThread;
+	private final Handler mHandler;
+	private final Object mFlushLock = new Object();
+	// logging fills mPending while a flush writes mWriting
+	private Batch mPending;
+	private Batch mWriting;
+	private SQLiteStatement mInsert;
+	private boolean mClosed;
+
+	private long mFlushCount;
+	private long mRowCount;
+	private long mLostRowCount;
+
+	private final Runnable mFlushRunnable = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	/**
+	 * @param maxLatencyMs
+	 *            longest time an interaction waits before it is written
+	 * @param maxBatchSize
+	 *            number of pending interactions that triggers a write
+	 */
+	InteractionWriteQueue(DatabaseHelper helper, long maxLatencyMs, int maxBatchSize) {
+		mHelper = helper;
+		mMaxLatencyMs = maxLatencyMs;
+		mMaxBatchSize = Math.max(1, maxBatchSize);
+		mPending = new Batch(mMaxBatchSize);
+		mWriting = new Batch(mMaxBatchSize);
+		mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+		mThread.start();
+		mHandler = new Handler(mThread.getLooper());
+	}
+
+	/**
+	 * Queue an interaction, its start time is taken now. Never touches the
+	 * database on the calling thread.
+	 */
+	public void log(long pageId, String mediaName, long actionId) {
+		long startTime = mHelper.getCurrentTimeInMilliseconds();
+		synchronized (this) {
+			if (mClosed) {
+				throw new IllegalStateException("InteractionWriteQueue is closed");
+			}
+			mPending.add(pageId, mediaName, actionId, startTime);
+			if (mPending.count >= mMaxBatchSize) {
+				mHandler.removeCallbacks(mFlushRunnable);
+				mHandler.post(mFlushRunnable);
+			} else if (mPending.count == 1) {
+				mHandler.postDelayed(mFlushRunnable, mMaxLatencyMs);
+			}
+		}
+	}
+
+	public void log(InteractionModel interaction) {
+		log(interaction.getPageId(), interaction.getMediaName(), interaction.getActionId());
+	}
+
+	/**
+	 * Write every pending interaction now, on the calling thread.
+	 */
+	public void flush() {
+		synchronized (mFlushLock) {
+			Batch batch;
+			synchronized (this) {
+				mHandler.removeCallbacks(mFlushRunnable);
+				if (mPending.count == 0) {
+					return;
+				}
+				batch = mPending;
+				mPending = mWriting;
+				mWriting = batch;
+			}
+			long start = SystemClock.elapsedRealtime();
+			SQLiteDatabase db = mHelper.getWritableDatabase();
+			if (mInsert == null) {
+				mInsert = db.compileStatement(DatabaseHelper.INSERT_INTERACTION);
+			}
+			boolean written = false;
+			db.beginTransaction();
+			try {
+				for (int i = 0; i < batch.count; i++) {
+					mInsert.clearBindings();
+					mInsert.bindLong(1, batch.pageIds[i]);
+					if (batch.mediaNames[i] == null) {
+						mInsert.bindNull(2);
+					} else {
+						mInsert.bindString(2, batch.mediaNames[i]);
+					}
+					mInsert.bindLong(3, batch.actionIds[i]);
+					mInsert.bindLong(4, batch.startTimes[i]);
+					mInsert.executeInsert();
+				}
+				db.setTransactionSuccessful();
+				written = true;
+			} catch (RuntimeException e) {
+				Log.e(TAG, "lost " + batch.count + " interactions", e);
+			} finally {
+				db.endTransaction();
+			}
+			if (written) {
+				mFlushCount++;
+				mRowCount += batch.count;
+				Log.v(TAG, "wrote " + batch.count + " interactions in " + (SystemClock.elapsedRealtime() - start) + " ms");
+			} else {
+				mLostRowCount += batch.count;
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Write everything still pending and stop the background thread. Further
+	 * calls to log() throw IllegalStateException.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (mClosed) {
+				return;
+			}
+			mClosed = true;
+		}
+		flush();
+		synchronized (mFlushLock) {
+			if (mInsert != null) {
+				mInsert.close();
+				mInsert = null;
+			}
+		}
+		mThread.quit();
+	}
+
+	/** @return number of transactions written so far */
+	public long getFlushCount() {
+		synchronized (mFlushLock) {
+			return mFlushCount;
+		}
+	}
+
+	/** @return number of interactions written so far */
+	public long getRowCount() {
+		synchronized (mFlushLock) {
+			return mRowCount;
+		}
+	}
+
+	/** @return number of interactions dropped because their write failed */
+	public long getLostRowCount() {
+		synchronized (mFlushLock) {
+			return mLostRowCount;
+		}
+	}
+}
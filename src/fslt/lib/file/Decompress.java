@@ -1,21 +1,59 @@
 package fslt.lib.file;
 
 import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 public class Decompress {
+	private static final String TAG = Decompress.class.getSimpleName();
+	// copy buffer owned by each parallel worker, reused for every entry it extracts
+	private static final int WORKER_BUFFER_SIZE = 64 * 1024;
+	public static final int DEFAULT_WORKER_COUNT = Math.max(2, Runtime.getRuntime().availableProcessors());
+	/** Written into location by unzipIncremental(), one "crc size name" line per file */
+	public static final String MANIFEST_FILE_NAME = ".fslt_unzip_manifest";
+
 	private final String _zipFile;
 	private final String _location;
+	private long _lastUnzipMillis;
+	private long _lastUnzipBytes;
+	private int _lastSkippedCount;
+	private int _lastDeletedCount;
 
 	/**
 	 * Decompresses the file at zipFile into location
-	 * 
+	 *
 	 * @param zipFile
 	 * @param location
 	 */
@@ -27,6 +65,8 @@ public class Decompress {
 	}
 
 	public void unzip() throws Exception {
+		long start = SystemClock.elapsedRealtime();
+		long bytes = 0;
 		try {
 			FileInputStream fin = new FileInputStream(_zipFile);
 			ZipInputStream zin = new ZipInputStream(fin);
@@ -48,6 +88,7 @@ public class Decompress {
 					// we read up to our buffer size (2048 bits) per read and then write that out
 					while ((size = zin.read(buffer, 0, buffer.length)) != -1) {
 						bufferOut.write(buffer, 0, size);
+						bytes += size;
 					}
 
 					bufferOut.flush();
@@ -62,6 +103,325 @@ public class Decompress {
 			Log.e("Decompress", "unzip", e);
 			throw e;
 		}
+		recordStats(start, bytes);
+	}
+
+	/**
+	 * Decompress using the zip central directory (random access) instead of
+	 * walking the archive as a stream. Entries are handed out to a bounded pool
+	 * of workers, each owning a single reusable copy buffer. Every unique
+	 * directory is created once up front so workers never call mkdirs().
+	 *
+	 * @param workerCount
+	 *            maximum number of threads used to inflate entries, use
+	 *            DEFAULT_WORKER_COUNT if unsure.
+	 * @throws Exception
+	 *             the first failure of any worker, remaining entries are
+	 *             abandoned once a worker fails.
+	 */
+	public void unzipParallel(int workerCount) throws Exception {
+		long start = SystemClock.elapsedRealtime();
+		long bytes = 0;
+		ZipFile zipFile = null;
+		ExecutorService executor = null;
+		try {
+			zipFile = new ZipFile(_zipFile);
+			List<ZipEntry> entries = new ArrayList<ZipEntry>(zipFile.size());
+			Set<String> directories = new HashSet<String>();
+			Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+			while (zipEntries.hasMoreElements()) {
+				ZipEntry ze = zipEntries.nextElement();
+				if (ze.isDirectory()) {
+					directories.add(_location + ze.getName());
+				} else {
+					entries.add(ze);
+					String parent = new File(_location + ze.getName()).getParent();
+					if (parent != null) {
+						directories.add(parent);
+					}
+				}
+			}
+			for (String dir : directories) {
+				File f = new File(dir);
+				if (!f.isDirectory()) {
+					f.mkdirs();
+				}
+			}
+			// hand out the largest entries first so one big page image does not
+			// end up running alone after every other worker has finished
+			Collections.sort(entries, new Comparator<ZipEntry>() {
+				@Override
+				public int compare(ZipEntry lhs, ZipEntry rhs) {
+					long l = lhs.getSize();
+					long r = rhs.getSize();
+					return l < r ? 1 : (l == r ? 0 : -1);
+				}
+			});
+
+			int workers = Math.max(1, Math.min(workerCount, entries.size()));
+			executor = Executors.newFixedThreadPool(workers);
+			AtomicInteger nextEntry = new AtomicInteger();
+			AtomicBoolean failed = new AtomicBoolean(false);
+			List<Future<Long>> results = new ArrayList<Future<Long>>(workers);
+			for (int i = 0; i < workers; i++) {
+				results.add(executor.submit(new UnzipWorker(zipFile, entries, nextEntry, failed)));
+			}
+			for (Future<Long> result : results) {
+				bytes += result.get();
+			}
+		} catch (ExecutionException e) {
+			Log.e(TAG, "unzipParallel", e.getCause());
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		} catch (Exception e) {
+			Log.e(TAG, "unzipParallel", e);
+			throw e;
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+			if (zipFile != null) {
+				zipFile.close();
+			}
+		}
+		recordStats(start, bytes);
+	}
+
+	/**
+	 * Bring location up to date with the archive while writing as little as
+	 * possible. Each entry's CRC32 and size from the central directory are
+	 * compared against the manifest written by the previous incremental unzip,
+	 * unchanged files are skipped, and files on disk that are no longer in the
+	 * archive are deleted. Without a manifest the CRC32 of a file already on
+	 * disk with the right size is computed instead, which reads but does not
+	 * write flash.
+	 * <p>
+	 * Unlike DefaultUnzipFileTask's default behavior the location must NOT be
+	 * deleted before calling this.
+	 * 
+	 * @throws Exception
+	 */
+	public void unzipIncremental() throws Exception {
+		long start = SystemClock.elapsedRealtime();
+		long bytes = 0;
+		int skipped = 0;
+		int deleted = 0;
+		File root = new File(_location);
+		File manifestFile = new File(root, MANIFEST_FILE_NAME);
+		ZipFile zipFile = null;
+		try {
+			Map<String, long[]> previous = readManifest(manifestFile);
+			// a partially applied update must never be trusted, so the manifest
+			// only exists while location matches it
+			manifestFile.delete();
+
+			zipFile = new ZipFile(_zipFile);
+			Map<String, long[]> current = new HashMap<String, long[]>(zipFile.size());
+			byte[] buffer = new byte[WORKER_BUFFER_SIZE];
+			Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+			while (zipEntries.hasMoreElements()) {
+				ZipEntry ze = zipEntries.nextElement();
+				if (ze.isDirectory()) {
+					_dirChecker(ze.getName());
+					continue;
+				}
+				long[] crcAndSize = new long[] { ze.getCrc(), ze.getSize() };
+				current.put(ze.getName(), crcAndSize);
+				File f = new File(_location + ze.getName());
+				if (isUnchanged(f, crcAndSize, previous.get(ze.getName()), buffer)) {
+					skipped++;
+					continue;
+				}
+				File parent = f.getParentFile();
+				if (parent != null && !parent.isDirectory()) {
+					parent.mkdirs();
+				}
+				InputStream in = zipFile.getInputStream(ze);
+				OutputStream out = null;
+				try {
+					out = new FileOutputStream(f);
+					int size;
+					while ((size = in.read(buffer, 0, buffer.length)) != -1) {
+						out.write(buffer, 0, size);
+						bytes += size;
+					}
+				} finally {
+					in.close();
+					if (out != null) {
+						out.close();
+					}
+				}
+			}
+			deleted = deleteOrphans(root, "", current);
+			writeManifest(manifestFile, current);
+		} catch (Exception e) {
+			Log.e(TAG, "unzipIncremental", e);
+			throw e;
+		} finally {
+			if (zipFile != null) {
+				zipFile.close();
+			}
+		}
+		_lastSkippedCount = skipped;
+		_lastDeletedCount = deleted;
+		Log.d(TAG, "incremental unzip skipped " + skipped + " unchanged files, deleted " + deleted + " orphans");
+		recordStats(start, bytes);
+	}
+
+	/**
+	 * @return number of unchanged files left in place by the last
+	 *         unzipIncremental().
+	 */
+	public int getLastSkippedCount() {
+		return _lastSkippedCount;
+	}
+
+	/**
+	 * @return number of orphaned files removed by the last unzipIncremental().
+	 */
+	public int getLastDeletedCount() {
+		return _lastDeletedCount;
+	}
+
+	private boolean isUnchanged(File f, long[] crcAndSize, long[] previous, byte[] buffer) {
+		if (!f.isFile() || f.length() != crcAndSize[1] || crcAndSize[0] == -1) {
+			return false;
+		}
+		if (previous != null) {
+			return previous[0] == crcAndSize[0] && previous[1] == crcAndSize[1];
+		}
+		CRC32 crc = new CRC32();
+		InputStream in = null;
+		try {
+			in = new FileInputStream(f);
+			int size;
+			while ((size = in.read(buffer, 0, buffer.length)) != -1) {
+				crc.update(buffer, 0, size);
+			}
+		} catch (IOException e) {
+			return false;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// nothing was written
+				}
+			}
+		}
+		return crc.getValue() == crcAndSize[0];
+	}
+
+	/**
+	 * Delete every file under dir that is not an entry of the archive, and any
+	 * directory left empty by that.
+	 * 
+	 * @return number of files deleted
+	 */
+	private int deleteOrphans(File dir, String prefix, Map<String, long[]> entries) {
+		File[] children = dir.listFiles();
+		if (children == null) {
+			return 0;
+		}
+		int deleted = 0;
+		for (File child : children) {
+			String name = prefix + child.getName();
+			if (child.isDirectory()) {
+				deleted += deleteOrphans(child, name + "/", entries);
+				String[] remaining = child.list();
+				if (remaining != null && remaining.length == 0) {
+					child.delete();
+				}
+			} else if (!entries.containsKey(name) && !name.equals(MANIFEST_FILE_NAME)) {
+				if (child.delete()) {
+					deleted++;
+				}
+			}
+		}
+		return deleted;
+	}
+
+	private static Map<String, long[]> readManifest(File manifestFile) {
+		Map<String, long[]> manifest = new HashMap<String, long[]>();
+		if (!manifestFile.isFile()) {
+			return manifest;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), "UTF-8"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				// crc size name, name last since it may contain spaces
+				int first = line.indexOf(' ');
+				int second = line.indexOf(' ', first + 1);
+				if (first < 0 || second < 0) {
+					continue;
+				}
+				manifest.put(line.substring(second + 1), new long[] { Long.parseLong(line.substring(0, first)),
+						Long.parseLong(line.substring(first + 1, second)) });
+			}
+		} catch (Exception e) {
+			// an unreadable manifest only costs us a full compare
+			Log.w(TAG, "ignoring manifest " + manifestFile, e);
+			manifest.clear();
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					// read only
+				}
+			}
+		}
+		return manifest;
+	}
+
+	private static void writeManifest(File manifestFile, Map<String, long[]> entries) throws IOException {
+		File tmp = new File(manifestFile.getPath() + ".tmp");
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+		try {
+			for (Map.Entry<String, long[]> entry : entries.entrySet()) {
+				long[] crcAndSize = entry.getValue();
+				writer.write(crcAndSize[0] + " " + crcAndSize[1] + " " + entry.getKey() + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+		if (!tmp.renameTo(manifestFile)) {
+			tmp.delete();
+			throw new IOException("could not write manifest " + manifestFile);
+		}
+	}
+
+	/**
+	 * @return wall-clock time in milliseconds taken by the last completed unzip.
+	 */
+	public long getLastUnzipMillis() {
+		return _lastUnzipMillis;
+	}
+
+	/**
+	 * @return number of uncompressed bytes written by the last completed unzip.
+	 */
+	public long getLastUnzipBytes() {
+		return _lastUnzipBytes;
+	}
+
+	/**
+	 * @return throughput of the last completed unzip in uncompressed bytes per
+	 *         second.
+	 */
+	public long getLastUnzipBytesPerSecond() {
+		return _lastUnzipBytes * 1000 / Math.max(1, _lastUnzipMillis);
+	}
+
+	private void recordStats(long start, long bytes) {
+		_lastUnzipMillis = SystemClock.elapsedRealtime() - start;
+		_lastUnzipBytes = bytes;
+		Log.d(TAG, "unzipped " + bytes + " bytes in " + _lastUnzipMillis + " ms ("
+				+ getLastUnzipBytesPerSecond() + " bytes/sec)");
 	}
 
 	private void _dirChecker(String dir) {
@@ -71,4 +431,53 @@ public class Decompress {
 			f.mkdirs();
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Pulls entries off the shared list until it is drained, writing each one
+	 * with the worker's own buffer. Returns the number of bytes written.
+	 */
+	private class UnzipWorker implements Callable<Long> {
+		private final ZipFile zipFile;
+		private final List<ZipEntry> entries;
+		private final AtomicInteger nextEntry;
+		private final AtomicBoolean failed;
+		private final byte[] buffer = new byte[WORKER_BUFFER_SIZE];
+
+		UnzipWorker(ZipFile zipFile, List<ZipEntry> entries, AtomicInteger nextEntry, AtomicBoolean failed) {
+			this.zipFile = zipFile;
+			this.entries = entries;
+			this.nextEntry = nextEntry;
+			this.failed = failed;
+		}
+
+		@Override
+		public Long call() throws Exception {
+			long written = 0;
+			int index;
+			try {
+				while (!failed.get() && (index = nextEntry.getAndIncrement()) < entries.size()) {
+					ZipEntry ze = entries.get(index);
+					InputStream in = zipFile.getInputStream(ze);
+					OutputStream out = null;
+					try {
+						out = new FileOutputStream(_location + ze.getName());
+						int size;
+						while ((size = in.read(buffer, 0, buffer.length)) != -1) {
+							out.write(buffer, 0, size);
+							written += size;
+						}
+					} finally {
+						in.close();
+						if (out != null) {
+							out.close();
+						}
+					}
+				}
+			} catch (Exception e) {
+				failed.set(true);
+				throw e;
+			}
+			return written;
+		}
+	}
+}
@@ -237,8 +237,32 @@ public class FileOperations {
 		return inputStream;
 	}
 
+	/**
+	 * Resolve the file backing fileName at a storage location, for callers that
+	 * need more than an InputStream such as seeking or memory mapping.
+	 *
+	 * @param location
+	 *            Use FileOperations.INTERNAL_STORAGE or
+	 *            FileOperations.EXTERNAL_STORAGE to indicate root of file
+	 *            location. Assets are not backed by a file.
+	 * @param fileName
+	 *            The file name including any parent directory structure
+	 *            information that will all be relative to the storage
+	 *            'location' directory.
+	 * @return File at the storage location, or null for ASSETS_STORAGE and
+	 *         unknown locations.
+	 */
+	public File getFileFromStorageLocation(int location, String fileName) {
+		if (location == EXTERNAL_STORAGE) {
+			return new File(Environment.getExternalStorageDirectory() + File.separator + fileName);
+		} else if (location == INTERANL_STORAGE) {
+			return new File(mCtx.getFilesDir().getPath() + File.separator + fileName);
+		}
+		return null;
+	}
+
 	/*
-	 * Delete file or delete directory recursively. Similar to the 
+	 * Delete file or delete directory recursively. Similar to the
 	 * command line 'rm -rf <file or dir>' Note that this is a static method.
 	 * 
 	 * @param fileOrDirectory
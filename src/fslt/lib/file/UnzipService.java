@@ -28,7 +28,18 @@ public abstract class UnzipService extends Service {
 	public final static String ZIP_FILE_LOCATOIN = "ZIP_FILE_LOACTION";
 	public final static String SHOW_TOAST = "SHOW_TOAST";
 	public final static String DELETE_ZIP_FILE_AFTER_UNZIP = "DELETE_ZIP_FILE_AFTER_DOWNLOAD";
+	public final static String UNZIP_MODE = "UNZIP_MODE";
+	/** Walk the archive with a single ZipInputStream, see Decompress.unzip() */
+	public final static int UNZIP_MODE_STREAMING = 0;
+	/** Random access unzip over a worker pool, see Decompress.unzipParallel() */
+	public final static int UNZIP_MODE_PARALLEL = 1;
+	/**
+	 * Only rewrite changed files and delete orphans instead of deleting the
+	 * whole story folder first, see Decompress.unzipIncremental()
+	 */
+	public final static int UNZIP_MODE_INCREMENTAL = 2;
 	private boolean mShowToast;
+	private int mUnzipMode = UNZIP_MODE_STREAMING;
 	private Context mContext;
 
 	@Override
@@ -53,6 +64,7 @@ public abstract class UnzipService extends Service {
 		String zipFileLocation = intent.getStringExtra(ZIP_FILE_LOCATOIN);
 		String unzipFileToLocation = intent.getStringExtra(UNZIP_FILE_TO_LOCATION);
 		mShowToast = intent.getBooleanExtra(SHOW_TOAST, false);
+		mUnzipMode = intent.getIntExtra(UNZIP_MODE, UNZIP_MODE_STREAMING);
 
 		if (mShowToast) {
 			Toast.makeText(mContext, fileName + " unzipping :fslt: ", Toast.LENGTH_SHORT).show();
@@ -73,6 +85,16 @@ public abstract class UnzipService extends Service {
 	 */
 	public abstract void handleZipFile(String zipFileLoaction, String unzipFileToLocation, String fileName);
 
+	/**
+	 * Unzip mode requested by the intent that started the service, pass it on
+	 * to DefaultUnzipFileTask from handleZipFile.
+	 * 
+	 * @return UNZIP_MODE_STREAMING, UNZIP_MODE_PARALLEL or UNZIP_MODE_INCREMENTAL
+	 */
+	protected int getUnzipMode() {
+		return mUnzipMode;
+	}
+
 	public static abstract class UnzipFinishedListener {
 		public abstract void onUnzipFinished();
 
@@ -81,6 +103,14 @@ public abstract class UnzipService extends Service {
 		public void onZipDeleted() {
 
 		}
+
+		/**
+		 * Called after a successful unzip with the measured wall-clock time and
+		 * throughput so the streaming and parallel modes can be compared.
+		 */
+		public void onUnzipStats(int unzipMode, long millis, long bytes, long bytesPerSecond) {
+
+		}
 	}
 
 	/**
@@ -92,27 +122,47 @@ public abstract class UnzipService extends Service {
 
 		private final UnzipFinishedListener listener;
 		private boolean deleteZipFile = false;
+		private int unzipMode = UNZIP_MODE_STREAMING;
 
 		public DefaultUnzipFileTask(UnzipFinishedListener listener, boolean deleteZipFile) {
 			this.listener = listener;
 			this.deleteZipFile = deleteZipFile;
 		}
 
+		public DefaultUnzipFileTask(UnzipFinishedListener listener, boolean deleteZipFile, int unzipMode) {
+			this(listener, deleteZipFile);
+			this.unzipMode = unzipMode;
+		}
+
 		public DefaultUnzipFileTask() {
 			this.listener = null;
 		}
 
 		@Override
 		protected Boolean doInBackground(String... locations) {
-			// Delete the entire old folder if it existed
-			FileOperations.deleteRecursive(new File(locations[1]));
+			if (unzipMode != UNZIP_MODE_INCREMENTAL) {
+				// Delete the entire old folder if it existed
+				FileOperations.deleteRecursive(new File(locations[1]));
+			}
 			String fileToUnzip = locations[0];
 			String locationToUnzipFile = locations[1];
 			//Try to unzip the file
 			try {
 				Log.d(TAG, "start to decompress " + fileToUnzip);
 				Decompress fileToDecompress = new Decompress(fileToUnzip, locationToUnzipFile);
-				fileToDecompress.unzip();
+				if (unzipMode == UNZIP_MODE_PARALLEL) {
+					fileToDecompress.unzipParallel(Decompress.DEFAULT_WORKER_COUNT);
+				} else if (unzipMode == UNZIP_MODE_INCREMENTAL) {
+					fileToDecompress.unzipIncremental();
+				} else {
+					fileToDecompress.unzip();
+				}
+				Log.d(TAG, "unzip mode " + unzipMode + " took " + fileToDecompress.getLastUnzipMillis() + " ms at "
+						+ fileToDecompress.getLastUnzipBytesPerSecond() + " bytes/sec");
+				if (listener != null) {
+					listener.onUnzipStats(unzipMode, fileToDecompress.getLastUnzipMillis(),
+							fileToDecompress.getLastUnzipBytes(), fileToDecompress.getLastUnzipBytesPerSecond());
+				}
 				if (deleteZipFile) {
 					deleteZipFile(fileToUnzip);
 				}
@@ -154,4 +204,10 @@ public abstract class UnzipService extends Service {
 		new DefaultUnzipFileTask(listener, true).execute(zipFileLocation, unzipFileToLocation);
 	}
 
+	public static void unzipFile(String zipFileLocation, String unzipFileToLocation, UnzipFinishedListener listener,
+			int unzipMode) {
+
+		new DefaultUnzipFileTask(listener, true, unzipMode).execute(zipFileLocation, unzipFileToLocation);
+	}
+
 }
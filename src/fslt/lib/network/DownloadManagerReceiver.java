@@ -20,6 +20,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Environment;
 import android.util.Log;
 import fslt.lib.file.UnzipService;
@@ -50,6 +51,35 @@ public class DownloadManagerReceiver extends BroadcastReceiver {
 		public abstract void onRepeatDownloadRequest();
 
 		public abstract void onSuccessfulDownload(Context context, String downloadedFilename);
+
+		/**
+		 * Streaming download only: entry has been completely written to disk
+		 * and can be used while the rest of the archive is still arriving.
+		 * 
+		 * @param bytesDownloaded
+		 *            compressed bytes received so far
+		 * @param totalBytes
+		 *            size of the zip reported by the server, -1 if unknown
+		 */
+		public void onEntryUnzipped(Context context, String entryName, File entryFile, long bytesDownloaded,
+				long totalBytes) {
+
+		}
+
+		/**
+		 * Streaming download only: every entry of the archive has been unzipped.
+		 */
+		public void onStreamingDownloadFinished(Context context, String unzipLocation) {
+
+		}
+
+		/**
+		 * Streaming download only: the download or unzip failed or was
+		 * cancelled, e is null when cancelled.
+		 */
+		public void onStreamingDownloadFailure(Context context, Exception e) {
+
+		}
 	}
 
 	private final static String TAG = DownloadManagerReceiver.class.getSimpleName();
@@ -175,15 +205,9 @@ public class DownloadManagerReceiver extends BroadcastReceiver {
 				//Should raise an error 
 				e.printStackTrace();
 			}
-			// zip is crated 'zip -rj' and opened 'unzip fileName.zip -d fileName/
-			StringBuilder unzipLocation = new StringBuilder();
-			unzipLocation.append(Environment.getExternalStorageDirectory());
-			// unzipLocation.append(File.separator).append(mRootAppStorageDir);
-			unzipLocation.append(File.separator).append(fileName).append(File.separator);
-
 			unzipServiceIntent.putExtra(UnzipService.FILE_NAME, fileName);
 			unzipServiceIntent.putExtra(UnzipService.ZIP_FILE_LOCATOIN, downloadedFileUri);
-			unzipServiceIntent.putExtra(UnzipService.UNZIP_FILE_TO_LOCATION, unzipLocation.toString());
+			unzipServiceIntent.putExtra(UnzipService.UNZIP_FILE_TO_LOCATION, getDefaultUnzipLocation(fileName));
 			unzipServiceIntent.putExtra(UnzipService.SHOW_TOAST, true);
 			unzipServiceIntent.putExtra(UnzipService.DELETE_ZIP_FILE_AFTER_UNZIP, true);
 			context.startService(unzipServiceIntent);
@@ -192,4 +216,34 @@ public class DownloadManagerReceiver extends BroadcastReceiver {
 		}
 	}
 
+	/**
+	 * Download the story zip at url and unzip it while it downloads, without
+	 * going through DownloadManager or UnzipService. Entries are reported to the
+	 * listener as they become usable, see
+	 * {@link DownloadManagerReceiverListener#onEntryUnzipped}.
+	 * 
+	 * @param context
+	 * @param url
+	 *            location of the story zip
+	 * @param fileName
+	 *            story name, the story is unzipped to the same folder
+	 *            defaultUnzipFile would use
+	 * @return the running task, cancel it to stop the download
+	 */
+	public StreamingUnzipTask requestStreamingDownload(Context context, String url, String fileName) {
+		StreamingUnzipTask task = new StreamingUnzipTask(context, url, getDefaultUnzipLocation(fileName), listener);
+		// do not queue behind other AsyncTasks for the length of a download
+		task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+		return task;
+	}
+
+	private static String getDefaultUnzipLocation(String fileName) {
+		// zip is crated 'zip -rj' and opened 'unzip fileName.zip -d fileName/
+		StringBuilder unzipLocation = new StringBuilder();
+		unzipLocation.append(Environment.getExternalStorageDirectory());
+		// unzipLocation.append(File.separator).append(mRootAppStorageDir);
+		unzipLocation.append(File.separator).append(fileName).append(File.separator);
+		return unzipLocation.toString();
+	}
+
 }
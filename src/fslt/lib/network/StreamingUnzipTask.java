@@ -0,0 +1,264 @@
+/*
+ * Copyright 2013 StoryScape Project. All rights reserved.
+ *
+ *
+ */
+package fslt.lib.network;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Log;
+import fslt.lib.network.DownloadManagerReceiver.DownloadManagerReceiverListener;
+
+/**
+ * StreamingUnzipTask fetches a story zip over HTTP and inflates each entry as
+ * its bytes arrive, instead of waiting for DownloadManager to finish and then
+ * starting UnzipService. Every entry is written to a ".part" file and renamed
+ * once complete, so a file reported through
+ * {@link DownloadManagerReceiverListener#onEntryUnzipped} is always whole and
+ * can be used while the rest of the archive is still downloading.
+ * <p>
+ * Any URL works, including a local HTTP server standing in for the story
+ * server. Note that zip archives must be created with deflated entries (the
+ * default of 'zip -rj'), ZipInputStream cannot stream stored entries that use a
+ * trailing data descriptor.
+ * <p>
+ * A failed or cancelled download removes the entry it was writing. If the task
+ * created the unzip location, the whole location is removed, so no half
+ * extracted story is left behind. A location that already existed keeps the
+ * entries that were completed.
+ *
+ * @see DownloadManagerReceiver#requestStreamingDownload
+ */
+public class StreamingUnzipTask extends AsyncTask<Void, StreamingUnzipTask.EntryProgress, Boolean> {
+
+	private final static String TAG = StreamingUnzipTask.class.getSimpleName();
+	private final static String PART_SUFFIX = ".part";
+	private final static int CONNECT_TIMEOUT = 15000;
+	private final static int READ_TIMEOUT = 30000;
+	private final static int BUFFER_SIZE = 16 * 1024;
+
+	/**
+	 * Snapshot of the download when an entry finished extracting, delivered
+	 * on the main thread.
+	 */
+	public static class EntryProgress {
+		public final String entryName;
+		public final File entryFile;
+		public final long bytesDownloaded;
+		public final long totalBytes;
+
+		EntryProgress(String entryName, File entryFile, long bytesDownloaded, long totalBytes) {
+			this.entryName = entryName;
+			this.entryFile = entryFile;
+			this.bytesDownloaded = bytesDownloaded;
+			this.totalBytes = totalBytes;
+		}
+	}
+
+	private final Context mContext;
+	private final String mUrl;
+	private final String mUnzipLocation;
+	private final DownloadManagerReceiverListener mListener;
+	private Exception mFailure;
+	// only touched by the background thread
+	private File mPart;
+	private boolean mCreatedRoot;
+
+	/**
+	 * @param context
+	 *            context handed back to the listener callbacks
+	 * @param url
+	 *            location of the story zip
+	 * @param unzipLocation
+	 *            directory the entries are extracted to, ending in a file
+	 *            separator
+	 * @param listener
+	 *            receives per entry progress and the final result
+	 */
+	public StreamingUnzipTask(Context context, String url, String unzipLocation,
+			DownloadManagerReceiverListener listener) {
+		mContext = context;
+		mUrl = url;
+		mUnzipLocation = unzipLocation;
+		mListener = listener;
+	}
+
+	@Override
+	protected Boolean doInBackground(Void... params) {
+		HttpURLConnection connection = null;
+		try {
+			connection = (HttpURLConnection) new URL(mUrl).openConnection();
+			connection.setConnectTimeout(CONNECT_TIMEOUT);
+			connection.setReadTimeout(READ_TIMEOUT);
+			int responseCode = connection.getResponseCode();
+			if (responseCode != HttpURLConnection.HTTP_OK) {
+				throw new IOException("unexpected response " + responseCode + " for " + mUrl);
+			}
+			CountingInputStream counter = new CountingInputStream(
+					new BufferedInputStream(connection.getInputStream(), BUFFER_SIZE));
+			unzipStream(counter, connection.getContentLength());
+		} catch (Exception e) {
+			Log.e(TAG, "streaming unzip of " + mUrl, e);
+			mFailure = e;
+			deletePartialOutput();
+			return false;
+		} finally {
+			if (connection != null) {
+				connection.disconnect();
+			}
+		}
+		if (isCancelled()) {
+			deletePartialOutput();
+			return false;
+		}
+		return true;
+	}
+
+	private void deletePartialOutput() {
+		if (mPart != null) {
+			mPart.delete();
+			mPart = null;
+		}
+		if (mCreatedRoot) {
+			deleteRecursively(new File(mUnzipLocation));
+		}
+	}
+
+	private static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+
+	private void unzipStream(CountingInputStream in, long totalBytes) throws IOException {
+		File root = new File(mUnzipLocation);
+		if (!root.isDirectory()) {
+			mCreatedRoot = true;
+			root.mkdirs();
+		}
+		String rootPath = root.getCanonicalPath() + File.separator;
+		byte[] buffer = new byte[BUFFER_SIZE];
+		ZipInputStream zin = new ZipInputStream(in);
+		try {
+			ZipEntry ze;
+			while (!isCancelled() && (ze = zin.getNextEntry()) != null) {
+				File target = new File(root, ze.getName());
+				if (!target.getCanonicalPath().startsWith(rootPath)) {
+					throw new IOException("zip entry outside of unzip location " + ze.getName());
+				}
+				if (ze.isDirectory()) {
+					target.mkdirs();
+					continue;
+				}
+				File parent = target.getParentFile();
+				if (!parent.isDirectory()) {
+					parent.mkdirs();
+				}
+				File part = new File(parent, target.getName() + PART_SUFFIX);
+				mPart = part;
+				OutputStream out = new FileOutputStream(part);
+				try {
+					int size;
+					while ((size = zin.read(buffer, 0, buffer.length)) != -1) {
+						out.write(buffer, 0, size);
+					}
+				} finally {
+					out.close();
+				}
+				zin.closeEntry();
+				if (!part.renameTo(target)) {
+					// rename will not replace an existing file on every file system
+					target.delete();
+					if (!part.renameTo(target)) {
+						throw new IOException("could not move " + part + " to " + target);
+					}
+				}
+				mPart = null;
+				publishProgress(new EntryProgress(ze.getName(), target, in.getCount(), totalBytes));
+			}
+		} finally {
+			zin.close();
+		}
+	}
+
+	@Override
+	protected void onProgressUpdate(EntryProgress... progress) {
+		for (EntryProgress entry : progress) {
+			mListener.onEntryUnzipped(mContext, entry.entryName, entry.entryFile, entry.bytesDownloaded,
+					entry.totalBytes);
+		}
+	}
+
+	@Override
+	protected void onPostExecute(Boolean result) {
+		if (result) {
+			mListener.onStreamingDownloadFinished(mContext, mUnzipLocation);
+		} else {
+			mListener.onStreamingDownloadFailure(mContext, mFailure);
+		}
+	}
+
+	@Override
+	protected void onCancelled(Boolean result) {
+		// documented as null, even if the cancel made a read fail
+		mListener.onStreamingDownloadFailure(mContext, null);
+	}
+
+	/**
+	 * Keeps track of how many compressed bytes have been pulled off the
+	 * network so far.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		private long mCount;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				mCount++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			int read = super.read(buffer, offset, count);
+			if (read > 0) {
+				mCount += read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long count) throws IOException {
+			long skipped = super.skip(count);
+			mCount += skipped;
+			return skipped;
+		}
+
+		long getCount() {
+			return mCount;
+		}
+	}
+}
@@ -6,6 +6,7 @@ import android.view.MotionEvent;
 import android.widget.ImageView;
 
 import fslt.lib.animation.AnimationManager;
+import fslt.lib.animation.ViewAnimationController;
 
 /*
  * ImageMedia class extends ImageView by adding specific variables and methods for layout
@@ -19,7 +20,9 @@ public class ImageMediaView extends ImageView {
 	public float scaleFactorY = 1.0f; 
 	public AnimationManager animator = null;
 	public int animationDuration = 500; //in milliseconds
+	// mirrors getAnimationController().isAnimating(), kept for code reading the field
 	public boolean isAnimated = false;
+	private ViewAnimationController mAnimationController;
 	private boolean mIsDraggable = false;
 	private boolean mBeingDragged = false;
 	public int actionOn = 0; 
@@ -38,6 +41,15 @@ public class ImageMediaView extends ImageView {
 		//this.mCtx = context;
 		//this.setAdjustViewBounds(true);
 	} // End ImageMedia
+	/**
+	 * @return the animation state of this view, created on first use
+	 */
+	public ViewAnimationController getAnimationController(){
+		if (mAnimationController == null){
+			mAnimationController = new ViewAnimationController(this);
+		}
+		return mAnimationController;
+	}
 	public void setDraggable(boolean isDraggable){
 		mIsDraggable = isDraggable; 
 	}
@@ -99,11 +111,7 @@ public class ImageMediaView extends ImageView {
 			}
 			if (action == AnimationManager.DRAG_GLIDE_BACK_ACTION)
 			{
-				if (this.isAnimated){
-					break;
-				} else {
-					this.isAnimated = true;
-				}
+				// ignored while the view is still animating
 				this.animator.glide(this, this.getX(), this.getY(), 
 						initX, initY, 500);
 			}